@@ -17,16 +17,27 @@ package cz.paralelnipolis.obcanka.android.lib;
 
 import com.acs.smartcard.Reader;
 import com.acs.smartcard.ReaderException;
-import cz.paralelnipolis.obcanka.core.HexUtils;
+import cz.paralelnipolis.obcanka.core.card.CardProfile;
+import cz.paralelnipolis.obcanka.core.card.CardProfileRegistry;
+import cz.paralelnipolis.obcanka.core.communication.BufferResponseAPDU;
 import cz.paralelnipolis.obcanka.core.communication.CardException;
 import cz.paralelnipolis.obcanka.core.communication.ICardInterface;
 import cz.paralelnipolis.obcanka.core.communication.ICommandAPDU;
 import cz.paralelnipolis.obcanka.core.communication.IResponseAPDU;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 public class AndroidCardInterface implements ICardInterface {
+    private static final int RECEIVE_BUFFER_SIZE = 300;
+    private static final int EXTENDED_RECEIVE_BUFFER_SIZE = 65536 + 2; //extended Le and status word
+
     private Reader reader;
     private int slotNumber;
     private byte[] atr;
+    private int protocol;
+    private byte[] receiveBuffer;
 
     public AndroidCardInterface(Reader reader, int slotNumber) {
         this.reader = reader;
@@ -38,72 +49,71 @@ public class AndroidCardInterface implements ICardInterface {
     }
 
     @Override
-    public IResponseAPDU transmit(ICommandAPDU command) throws CardException {
+    public synchronized IResponseAPDU transmit(ICommandAPDU command) throws CardException {
+        prepareCard();
+        return transmit(command, getReceiveBuffer());
+    }
+
+    /**
+     * Powers the card and negotiates protocol once for the whole batch and receives all responses
+     * into one buffer.
+     */
+    @Override
+    public synchronized List<IResponseAPDU> transmitBatch(List<ICommandAPDU> commands) throws CardException {
+        prepareCard();
+        byte[] receiveBuffer = getReceiveBuffer();
+        List<IResponseAPDU> responses = new ArrayList<>(commands.size());
+        for (ICommandAPDU command : commands) {
+            responses.add(transmit(command, receiveBuffer));
+        }
+        return responses;
+    }
+
+    /**
+     * @return buffer big enough for the longest response of negotiated protocol, extended Le is sent only over T=1
+     */
+    private byte[] getReceiveBuffer() {
+        int size = protocol == Reader.PROTOCOL_T1 ? EXTENDED_RECEIVE_BUFFER_SIZE : RECEIVE_BUFFER_SIZE;
+        if (receiveBuffer == null || receiveBuffer.length != size) {
+            receiveBuffer = new byte[size];
+        }
+        return receiveBuffer;
+    }
+
+    private void prepareCard() throws CardException {
         try {
             if (reader.isOpened()) {
                 if (reader.getState(slotNumber) == Reader.CARD_ABSENT) {
                     throw new CardException("Cannot transmit to card when is not present.");
                 }else if (reader.getState(slotNumber) == Reader.CARD_PRESENT) {
-                    System.out.println("state before power = " + reader.getState(slotNumber));
                     reader.power(slotNumber,Reader.CARD_WARM_RESET);
-                    System.out.println("state after power = " + reader.getState(slotNumber));
                 }
 
                 if (reader.getState(slotNumber) == Reader.CARD_NEGOTIABLE) {
-                    System.out.println("state before protocol = " + reader.getState(slotNumber));
-                    int protocolResult = reader.setProtocol(slotNumber, Reader.PROTOCOL_T0);
-                    System.out.println("protocolResult = " + protocolResult);
-                    System.out.println("state after protocol = " + reader.getState(slotNumber));
+                    CardProfile profile = CardProfileRegistry.getDefault().find(reader.getAtr(slotNumber));
+                    int protocol = Reader.PROTOCOL_T0;
+                    if (profile != null && CardProfile.PROTOCOL_T1.equals(profile.getProtocol())) {
+                        protocol = Reader.PROTOCOL_T1;
+                    }
+                    reader.setProtocol(slotNumber, protocol);
+                    this.protocol = protocol;
                     atr = reader.getAtr(slotNumber);
                 }
             }
         } catch (ReaderException e) {
             throw new CardException(e);
         }
+    }
 
-        byte[] receiveBuffer = new byte[300];
+    /**
+     * Response is copied out of receiveBuffer, the buffer is reused for following commands.
+     */
+    private IResponseAPDU transmit(ICommandAPDU command, byte[] receiveBuffer) throws CardException {
         try {
-            System.out.println("state before transmit = " + reader.getState(slotNumber));
-            System.out.println(">>>>>Command: " + HexUtils.bytesToHexString(command.getData()));
             int bytesReceived = reader.transmit(slotNumber, command.getData(), command.getData().length, receiveBuffer, receiveBuffer.length);
-            System.out.println("bytes Received = " + bytesReceived + " " + HexUtils.bytesToHexString(receiveBuffer));
-
-            if (bytesReceived > 0) {
-                final byte[] data = new byte[bytesReceived - 2];
-                System.arraycopy(receiveBuffer, 0, data, 0, data.length);
-                final byte[] fullResponse = new byte[bytesReceived];
-                System.arraycopy(receiveBuffer, 0, fullResponse, 0, fullResponse.length);
-                final int sw1 = (receiveBuffer[bytesReceived - 2]) & 0xFF;
-                final int sw2 = receiveBuffer[bytesReceived - 1] & 0xFF;
-                final int sw = sw1 << 8  | sw2;
-
-                System.out.println(">>>>Response sw = " + Integer.toHexString(sw) + " data: " +  HexUtils.bytesToHexString(data));
-                return new IResponseAPDU() {
-                    @Override
-                    public byte[] getBytes() {
-                        return fullResponse;
-                    }
-
-                    @Override
-                    public byte[] getData() {
-                        return data;
-                    }
-
-                    @Override
-                    public int getSW() {
-                        return sw;
-                    }
 
-                    @Override
-                    public int getSW1() {
-                        return sw1;
-                    }
-
-                    @Override
-                    public int getSW2() {
-                        return sw2;
-                    }
-                };
+            if (bytesReceived >= 2) {
+                return BufferResponseAPDU.wrap(Arrays.copyOf(receiveBuffer, bytesReceived));
             }
             throw new CardException("No response.");
         } catch (ReaderException e) {
@@ -126,4 +136,9 @@ public class AndroidCardInterface implements ICardInterface {
     public byte[] getATR() {
         return atr;
     }
+
+    @Override
+    public boolean isExtendedLengthSupported() {
+        return protocol == Reader.PROTOCOL_T1;
+    }
 }
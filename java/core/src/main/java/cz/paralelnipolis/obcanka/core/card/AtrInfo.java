@@ -0,0 +1,102 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.card;
+
+import cz.paralelnipolis.obcanka.core.HexUtils;
+
+import java.util.Arrays;
+
+/**
+ * Interprets ATR as returned by ICardInterface.getATR(). Desktop interface returns only historical bytes,
+ * Android one returns whole ATR, so both forms are accepted.
+ */
+public class AtrInfo {
+    private byte[] historicalBytes;
+
+    private AtrInfo(byte[] historicalBytes) {
+        this.historicalBytes = historicalBytes;
+    }
+
+    public static AtrInfo parse(byte[] atr) {
+        if (atr == null) {
+            return new AtrInfo(new byte[0]);
+        }
+        if (atr.length >= 2 && (atr[0] == 0x3B || atr[0] == 0x3F)) {
+            return new AtrInfo(extractHistoricalBytes(atr));
+        }
+        return new AtrInfo(atr);
+    }
+
+    private static byte[] extractHistoricalBytes(byte[] atr) {
+        int t0 = HexUtils.byteToInt(atr[1]);
+        int historicalLength = t0 & 0x0F;
+        int indicators = t0 >> 4;
+        int position = 2;
+        while (indicators != 0 && position < atr.length) {
+            if ((indicators & 1) != 0) { //TA
+                position++;
+            }
+            if ((indicators & 2) != 0) { //TB
+                position++;
+            }
+            if ((indicators & 4) != 0) { //TC
+                position++;
+            }
+            if ((indicators & 8) != 0 && position < atr.length) { //TD
+                indicators = HexUtils.byteToInt(atr[position]) >> 4;
+                position++;
+            } else {
+                indicators = 0;
+            }
+        }
+        position = Math.min(position, atr.length);
+        return Arrays.copyOfRange(atr, position, Math.min(position + historicalLength, atr.length));
+    }
+
+    public byte[] getHistoricalBytes() {
+        return historicalBytes;
+    }
+
+    /**
+     * @return value of compact-TLV object with given tag from historical bytes or null
+     */
+    public byte[] getCompactTlv(int tag) {
+        if (historicalBytes.length == 0 || HexUtils.byteToInt(historicalBytes[0]) != 0x80) {
+            return null;
+        }
+        int position = 1;
+        while (position < historicalBytes.length) {
+            int tagAndLength = HexUtils.byteToInt(historicalBytes[position]);
+            int length = tagAndLength & 0x0F;
+            if (position + 1 + length > historicalBytes.length) {
+                break;
+            }
+            if ((tagAndLength >> 4) == tag) {
+                return Arrays.copyOfRange(historicalBytes, position + 1, position + 1 + length);
+            }
+            position += 1 + length;
+        }
+        return null;
+    }
+
+    /**
+     * Card capabilities (compact-TLV tag 7), third software function byte, bit "extended Lc and Le fields".
+     */
+    public boolean isExtendedLengthSupported() {
+        byte[] capabilities = getCompactTlv(7);
+        return capabilities != null && capabilities.length >= 3 && (capabilities[2] & 0x40) != 0;
+    }
+}
@@ -18,21 +18,35 @@ package cz.paralelnipolis.obcanka.core.card;
 import cz.paralelnipolis.obcanka.core.HexUtils;
 import cz.paralelnipolis.obcanka.core.card.enums.*;
 import cz.paralelnipolis.obcanka.core.certificates.Certificate;
-import cz.paralelnipolis.obcanka.core.communication.ICommandAPDU;
+import cz.paralelnipolis.obcanka.core.certificates.CertificateStore;
 import cz.paralelnipolis.obcanka.core.encryption.EncryptionToken;
 import cz.paralelnipolis.obcanka.core.encryption.EncryptionUtils;
-import cz.paralelnipolis.obcanka.core.encryption.MasterSakC;
-import cz.paralelnipolis.obcanka.core.encryption.SakC;
+import cz.paralelnipolis.obcanka.core.encryption.SecureCodeContext;
 import cz.paralelnipolis.obcanka.core.communication.CardException;
 import cz.paralelnipolis.obcanka.core.communication.ICardInterface;
+import cz.paralelnipolis.obcanka.core.communication.ICommandAPDU;
 import cz.paralelnipolis.obcanka.core.communication.IResponseAPDU;
+import cz.paralelnipolis.obcanka.core.communication.ProtocolCardInterface;
 
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 public class Card {
 
@@ -56,33 +70,404 @@ public class Card {
     private static int FILE_ID_CERTIFICATE_AUTHORIZATION = 0x0132; //short
     private static int FILE_ID_CERTIFICATE_IDENTIFICATION = 0x0001; //long
 
+    static final int READ_BINARY_LEGACY_CHUNK_SIZE = 0xD0;
+    static final int READ_BINARY_SHORT_CHUNK_SIZE = 256;
+    static final int READ_BINARY_EXTENDED_CHUNK_SIZE = 0xFFFF;
+
+    private static ExecutorService certificateParserExecutor;
+
     private ICardInterface c;
-    private byte[] currentApplication;
+    private LeCache leCache;
+    private MetadataCache metadataCache;
+    private boolean metadataCacheChecked;
+    private CertificateStore certificateStore;
+    private FileCache fileCache;
+    private int readBinaryChunkSize; //0 until negotiated
+    private boolean extendedLengthEnabled;
+    private SecureCodeContext secureCodeContext;
+    private byte[] secureCodeContextAtr;
+    private SecureSessionManager secureSessionManager;
+    private boolean logicalChannelsEnabled;
+    private CardSession session = new CardSession();
+    private ProtocolCardInterface protocol;
+    private SecureRandom random;
+    private boolean recovering;
+    private CardProfileRegistry profileRegistry;
+    private CardProfile profile;
+    private byte[] profileAtr;
 
     public Card(ICardInterface c) {
-        this.c = c;
+        this(c, LeCache.getDefault());
+    }
+
+    public Card(ICardInterface c, LeCache leCache) {
+        this.protocol = ProtocolCardInterface.wrap(c);
+        this.c = protocol;
+        this.leCache = leCache;
+        this.profileRegistry = CardProfileRegistry.getDefault();
+    }
+
+    public LeCache getLeCache() {
+        return leCache;
+    }
+
+    public MetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    /**
+     * Enables read-through caching of card metadata. Pass null to disable it.
+     */
+    public void setMetadataCache(MetadataCache metadataCache) {
+        this.metadataCache = metadataCache;
+        this.metadataCacheChecked = false;
+    }
+
+    public CertificateStore getCertificateStore() {
+        return certificateStore;
+    }
+
+    /**
+     * Certificates found in the store by card serial number are returned without reading them from card.
+     * Pass null to always read certificates from card.
+     */
+    public void setCertificateStore(CertificateStore certificateStore) {
+        this.certificateStore = certificateStore;
+    }
+
+    public FileCache getFileCache() {
+        return fileCache;
+    }
+
+    /**
+     * Enables validation of file reads against cached copies, see {@link FileCache}. Pass null to always read whole files.
+     */
+    public void setFileCache(FileCache fileCache) {
+        this.fileCache = fileCache;
+    }
+
+    public CardProfileRegistry getProfileRegistry() {
+        return profileRegistry;
+    }
+
+    /**
+     * Registry used to find tuned parameters of the card by its ATR. Pass null to always negotiate them.
+     */
+    public void setProfileRegistry(CardProfileRegistry profileRegistry) {
+        this.profileRegistry = profileRegistry;
+        this.profile = null;
+        this.profileAtr = null;
+    }
+
+    /**
+     * @return profile of the inserted card or null when the card is not known. Known GET DATA lengths
+     * of the profile are put into LeCache when the card is seen for the first time.
+     */
+    public CardProfile getProfile() {
+        byte[] atr = c.getATR();
+        if (profileRegistry == null) {
+            return null;
+        }
+        if (profileAtr == null || !Arrays.equals(atr, profileAtr)) {
+            profileAtr = atr;
+            profile = profileRegistry.find(atr);
+            if (profile != null) {
+                for (Map.Entry<Integer, Integer> entry : profile.getDataLengths().entrySet()) {
+                    int authId = entry.getKey() >> 8;
+                    int tagId = entry.getKey() & 0xFF;
+                    if (leCache.get(atr, authId, tagId) <= 0) {
+                        leCache.putDeclared(atr, authId, tagId, entry.getValue());
+                    }
+                }
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Sets source of host random data for the secure messaging handshake, e.g. a seeded one to replay a recorded
+     * session. Null means a new SecureRandom for every handshake.
+     */
+    public void setRandom(SecureRandom random) {
+        this.random = random;
+    }
+
+    public SecureSessionManager getSecureSessionManager() {
+        return secureSessionManager;
+    }
+
+    /**
+     * Sends all commands of this Card over secure messaging session kept by given manager. Pass null to send plain commands.
+     */
+    public void setSecureSessionManager(SecureSessionManager secureSessionManager) {
+        this.secureSessionManager = secureSessionManager;
+    }
+
+    public boolean isLogicalChannelsEnabled() {
+        return logicalChannelsEnabled;
+    }
+
+    /**
+     * Keeps every selected application on its own logical channel opened by MANAGE CHANNEL, so switching between
+     * applications doesn't need another SELECT. Cards without logical channels fall back to the basic channel.
+     */
+    public void setLogicalChannelsEnabled(boolean logicalChannelsEnabled) {
+        this.logicalChannelsEnabled = logicalChannelsEnabled;
+    }
+
+    public CardSession getSession() {
+        return session;
+    }
+
+    /**
+     * Tells Card that the card was reset (e.g. by the reader or other application). Nothing is sent to the card,
+     * the selected application is re-selected with the next command that needs it.
+     */
+    public void notifyReset() {
+        session.markReset();
+        forgetSessionState();
+    }
+
+    private void forgetSessionState() {
+        metadataCacheChecked = false;
+        if (metadataCache != null) {
+            metadataCache.invalidate();
+        }
+        resetSecureCodeContext();
+        if (secureSessionManager != null) {
+            secureSessionManager.invalidate();
+        }
+    }
+
+    private IResponseAPDU transmit(byte[] request) throws CardException {
+        return transmit(request, session.getCurrentChannel());
+    }
+
+    private IResponseAPDU transmit(byte[] request, int channel) throws CardException {
+        return transmit(request, channel, true);
+    }
+
+    /**
+     * @param resetOnFailure false when CardException doesn't mean lost card state, e.g. extended APDU refused by the reader
+     */
+    private IResponseAPDU transmit(byte[] request, int channel, boolean resetOnFailure) throws CardException {
+        if (session.updateAtr(c.getATR())) { //card was swapped
+            forgetSessionState();
+        }
+        IResponseAPDU r;
+        try {
+            if (secureSessionManager != null) {
+                r = secureSessionManager.transmit(c.createCommand(setChannel(request, channel)));
+            } else {
+                r = c.transmit(c.createCommand(setChannel(request, channel)));
+            }
+        } catch (CardException e) {
+            if (resetOnFailure) {
+                //card might have been reset, so neither selected applications nor opened channels can be trusted
+                notifyReset();
+            }
+            throw e;
+        }
+        if (!recovering && CardSession.indicatesLostState(r.getSW()) && session.getCurrentApplication() != null
+                && isRecoverable(request)) {
+            IResponseAPDU recovered = recover(request);
+            if (recovered != null) {
+                return recovered;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Sends commands which don't depend on each other in one {@link ICardInterface#transmitBatch(List)} call on current
+     * channel. Commands are sent one by one when secure messaging is used, as every command changes the session.
+     * Commands answered as if the card was reset are sent again once the state is re-established.
+     */
+    private List<IResponseAPDU> transmitBatch(List<byte[]> requests) throws CardException {
+        if (secureSessionManager != null || requests.size() == 1) {
+            List<IResponseAPDU> responses = new ArrayList<>(requests.size());
+            for (byte[] request : requests) {
+                responses.add(transmit(request));
+            }
+            return responses;
+        }
+        if (session.updateAtr(c.getATR())) { //card was swapped
+            forgetSessionState();
+        }
+        int channel = session.getCurrentChannel();
+        List<ICommandAPDU> commands = new ArrayList<>(requests.size());
+        for (byte[] request : requests) {
+            commands.add(c.createCommand(setChannel(request, channel)));
+        }
+        List<IResponseAPDU> responses;
+        try {
+            responses = c.transmitBatch(commands);
+        } catch (CardException e) {
+            notifyReset();
+            throw e;
+        }
+        boolean recovered = false;
+        for (int i = 0; i < responses.size(); i++) {
+            byte[] request = requests.get(i);
+            if (recovering || !CardSession.indicatesLostState(responses.get(i).getSW()) || !isRecoverable(request)) {
+                continue;
+            }
+            if (recovered) {
+                //the rest of the batch was sent before the state was re-established
+                responses.set(i, transmit(request));
+            } else if (session.getCurrentApplication() != null) {
+                IResponseAPDU r = recover(request);
+                if (r != null) {
+                    responses.set(i, r);
+                    recovered = true;
+                }
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Only plain reads are sent again after recovery. Other commands may have changed the card (PIN tries, security
+     * environment) and secured ones would repeat the send sequence counter.
+     */
+    private boolean isRecoverable(byte[] request) {
+        if (secureSessionManager != null) {
+            return false;
+        }
+        int cla = HexUtils.byteToInt(request[0]);
+        boolean secured = (cla & 0x40) == 0 ? (cla & 0x0C) != 0 : (cla & 0x20) != 0;
+        int ins = HexUtils.byteToInt(request[1]);
+        return !secured && (ins == 0xCA || ins == 0xB0); //GET DATA, READ BINARY
+    }
+
+    /**
+     * Card answered as if it had been reset. Selects the application and file the command was meant for
+     * and sends the command once more.
+     * @return response to the repeated command or null when the state couldn't be re-established
+     */
+    private IResponseAPDU recover(byte[] request) throws CardException {
+        byte[] application = session.getCurrentApplication();
+        int fileId = session.getSelectedFileId();
+        notifyReset();
+        recovering = true;
+        try {
+            if (!selectApplication(application)) {
+                return null;
+            }
+            if (fileId >= 0 && selectFile(fileId) == null) {
+                return null;
+            }
+            session.recovered();
+            return transmit(request, session.getCurrentChannel());
+        } finally {
+            recovering = false;
+        }
+    }
+
+    /**
+     * Encodes logical channel number into CLA. Channels 1-3 use first interindustry coding, channels 4-19 further
+     * interindustry coding. Proprietary class bit is kept, so CLA 0x8C gets the channel the same way as 0x0C.
+     */
+    static byte[] setChannel(byte[] request, int channel) {
+        if (channel == 0) {
+            return request;
+        }
+        byte[] result = request.clone();
+        int cla = HexUtils.byteToInt(request[0]);
+        if (channel <= 3) {
+            result[0] = (byte) ((cla & 0xFC) | channel);
+        } else {
+            boolean secured = (cla & 0x0C) != 0;
+            result[0] = (byte) ((cla & 0x80) | 0x40 | (secured ? 0x20 : 0) | (channel - 4));
+        }
+        return result;
     }
 
 
     public boolean selectApplication(byte[] appId) throws CardException {
-        if (currentApplication != null) {
-            if (Arrays.equals(currentApplication, appId)) { //Don't select application if is already set
+        if (session.updateAtr(c.getATR())) { //card was swapped
+            forgetSessionState();
+        }
+        if (session.getCurrentApplication() != null) {
+            if (Arrays.equals(session.getCurrentApplication(), appId)) { //Don't select application if is already set
+                return true;
+            }
+        }
+
+        int channel = 0;
+        if (logicalChannelsEnabled) {
+            int selectedChannel = session.getApplicationChannel(appId);
+            if (selectedChannel >= 0) { //Application is still selected on its own channel
+                session.switchApplication(appId, selectedChannel);
                 return true;
             }
+            if (!session.getApplicationChannels().isEmpty()) {
+                channel = openLogicalChannel();
+            }
         }
 
         byte[] selectApplet = new byte[]{
                 0x00, (byte) 0xA4, 0x04, 0x0C, (byte) appId.length,
         };
-        IResponseAPDU r = c.transmit(c.createCommand((HexUtils.concatArrays(selectApplet, appId))));
+        IResponseAPDU r = transmit(HexUtils.concatArrays(selectApplet, appId), channel);
 
         if (r.getSW() == 0x9000) {
-            currentApplication = appId;
+            session.applicationSelected(appId, channel, logicalChannelsEnabled);
             return true;
         }
+        if (channel != 0) {
+            closeLogicalChannel(channel);
+        }
         return false;
     }
 
+    /**
+     * @return number of newly opened channel or 0 (basic channel) when card can't open more channels
+     */
+    private int openLogicalChannel() throws CardException {
+        if (!session.isLogicalChannelsSupported()) {
+            return 0;
+        }
+        int channel;
+        try {
+            //interface opens the channel, javax.smartcardio doesn't let MANAGE CHANNEL through transmit
+            channel = c.openLogicalChannel();
+        } catch (CardException e) {
+            notifyReset();
+            throw e;
+        }
+        if (channel < 0) { //no support at all, 0 means just no more free channels
+            session.setLogicalChannelsSupported(false);
+            return 0;
+        }
+        return channel;
+    }
+
+    private void closeLogicalChannel(int channel) throws CardException {
+        try {
+            c.closeLogicalChannel(channel);
+        } catch (CardException e) {
+            notifyReset();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes logical channels opened for applications. Applications stay selected only on the basic channel.
+     */
+    public void closeLogicalChannels() throws CardException {
+        for (Iterator<Map.Entry<String, Integer>> it = session.getApplicationChannels().entrySet().iterator(); it.hasNext(); ) {
+            int channel = it.next().getValue();
+            if (channel != 0) {
+                it.remove();
+                closeLogicalChannel(channel);
+            }
+        }
+        if (session.getCurrentChannel() != 0) {
+            session.switchApplication(null, 0);
+        }
+    }
+
     public String getCardNumber() throws CardException {
         if (selectApplication(APP_ID_CARD_MANAGEMENT)) {
             byte[] data = getData(TAG_ID_CARD_NUMBER, 0);
@@ -115,22 +500,77 @@ public class Card {
     }
 
     public byte[] getData(int tagId, int authId) throws CardException {
-        authId = authId << 4;
-        byte[] request = new byte[]{
-                (byte) 0x80, (byte) 0xCA,
-                (byte) (authId | 1),
-                (byte) (authId | tagId), 0
-        };
+        return getData(tagId, authId, 0);
+    }
+
+    public byte[] getData(int tagId, int authId, int expectedLength) throws CardException {
+        byte[] atr = c.getATR();
+        if (metadataCache != null) {
+            checkMetadataCache(atr);
+            byte[] cached = metadataCache.get(authId, tagId);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        byte[] data = transmitGetData(atr, tagId, authId, expectedLength);
+        if (metadataCache != null) {
+            metadataCache.put(authId, tagId, data);
+        }
+        return data;
+    }
+
+    /**
+     * Reads serial number from the card once per session, bypassing the cache, so values cached for another card
+     * with the same ATR are dropped. Card management application has to be selected.
+     */
+    private void checkMetadataCache(byte[] atr) throws CardException {
+        metadataCache.checkAtr(atr);
+        if (metadataCacheChecked) {
+            return;
+        }
+        byte[] serialNumber = transmitGetData(atr, TAG_ID_CERTIFICATE_SERIAL_NUMBER, 0, 0);
+        if (serialNumber == null) {
+            metadataCache.invalidate();
+            return;
+        }
+        metadataCache.checkSerialNumber(serialNumber);
+        metadataCache.put(0, TAG_ID_CERTIFICATE_SERIAL_NUMBER, serialNumber);
+        metadataCacheChecked = true;
+    }
+
+    private byte[] transmitGetData(byte[] atr, int tagId, int authId, int expectedLength) throws CardException {
+        boolean learned = false;
+        if (expectedLength == 0) {
+            getProfile(); //LeCache gets lengths known for this card
+            int learnedLength = leCache.get(atr, authId, tagId);
+            if (learnedLength > 0) {
+                expectedLength = learnedLength;
+                learned = true;
+            }
+        }
 
-        IResponseAPDU r = c.transmit(c.createCommand(request));
+        byte[] request = createGetDataRequest(tagId, authId, expectedLength);
+
+        long leResends = protocol.getLeResends();
+        IResponseAPDU r = transmit(request);
         if (r.getSW() == 0x9000) {
+            learnLe(atr, tagId, authId, learned, protocol.getLeResends() != leResends, r);
             return r.getData();
-        } else if (r.getSW1() == 0x6c) {
+        } else if (r.getSW1() == 0x6c) { //secure messaging passes wrong Le to the caller
+            if (learned) {
+                leCache.recordMismatch();
+            }
+            leCache.put(atr, authId, tagId, r.getSW2());
             request[request.length - 1] = (byte) r.getSW2();
-            r = c.transmit(c.createCommand(request));
+            r = transmit(request);
             if (r.getSW() == 0x9000) {
                 return r.getData();
             }
+        } else if (learned) {
+            //card doesn't accept learned length anymore, forget it and discover it again
+            leCache.recordMismatch();
+            leCache.remove(atr, authId, tagId);
+            return transmitGetData(atr, tagId, authId, 0);
         }
         return null;
     }
@@ -138,36 +578,21 @@ public class Card {
     public DokState getDokState() throws CardException {
         DokState result = DokState.None;
         if (selectApplication(APP_ID_CARD_MANAGEMENT)) {
-            byte[] data = getData(TAG_ID_DOK_STATE, 0);
-            if (data != null) {
-                int state = HexUtils.byteToInt(data[0]);
-                if ((state & 1) == 1) {
-                    result = DokState.Normal;
-                }
-                if ((state & 4) == 4) {
-                    result = DokState.Blocked;
-                }
-            }
+            result = toDokState(getData(TAG_ID_DOK_STATE, 0));
         }
         return result;
     }
 
     public int getDokTryLimit() throws CardException {
         if (selectApplication(APP_ID_CARD_MANAGEMENT)) {
-            byte[] data = getData(TAG_ID_DOK_TRY_LIMIT, 0);
-            if (data != null) {
-                return HexUtils.byteToInt(data[0]);
-            }
+            return toTryLimit(getData(TAG_ID_DOK_TRY_LIMIT, 0));
         }
         return -1;
     }
 
     public int getDokMaxTryLimit() throws CardException {
         if (selectApplication(APP_ID_CARD_MANAGEMENT)) {
-            byte[] data = getData(TAG_ID_DOK_MAX_TRY_LIMIT, 0);
-            if (data != null) {
-                return HexUtils.byteToInt(data[0]);
-            }
+            return toTryLimit(getData(TAG_ID_DOK_MAX_TRY_LIMIT, 0));
         }
         return -1;
     }
@@ -176,37 +601,184 @@ public class Card {
     public IokState getIokState() throws CardException {
         IokState result = IokState.None;
         if (selectApplication(APP_ID_CARD_MANAGEMENT)) {
-            byte[] data = getData(TAG_ID_IOK_STATE, 0);
-            if (data != null) {
-                int state = HexUtils.byteToInt(data[0]);
-                if ((state & 1) == 1) {
-                    result = IokState.Normal;
-                }
-                if ((state & 4) == 4) {
-                    result = IokState.Blocked;
-                }
-            }
+            result = toIokState(getData(TAG_ID_IOK_STATE, 0));
         }
         return result;
     }
 
     public int getIokTryLimit() throws CardException {
         if (selectApplication(APP_ID_CARD_MANAGEMENT)) {
-            byte[] data = getData(TAG_ID_IOK_TRY_LIMIT, 0);
-            if (data != null) {
-                return HexUtils.byteToInt(data[0]);
-            }
+            return toTryLimit(getData(TAG_ID_IOK_TRY_LIMIT, 0));
         }
         return -1;
     }
 
     public int getIokMaxTryLimit() throws CardException {
         if (selectApplication(APP_ID_CARD_MANAGEMENT)) {
-            byte[] data = getData(TAG_ID_IOK_MAX_TRY_LIMIT, 0);
-            if (data != null) {
-                return HexUtils.byteToInt(data[0]);
+            return toTryLimit(getData(TAG_ID_IOK_MAX_TRY_LIMIT, 0));
+        }
+        return -1;
+    }
+
+    /**
+     * Reads card number, serial number and DOK/IOK state with try limits in one pass.
+     * CARD_MANAGEMENT is selected only once and the single byte tags are requested with Le=1,
+     * so cards answering 6Cxx to Le=0 don't need a second GET DATA for them.
+     */
+    public CardSnapshot readSnapshot() throws CardException {
+        if (!selectApplication(APP_ID_CARD_MANAGEMENT)) {
+            return null;
+        }
+        byte[][] data = getData(0,
+                new int[]{TAG_ID_CARD_NUMBER, TAG_ID_CERTIFICATE_SERIAL_NUMBER,
+                        TAG_ID_DOK_STATE, TAG_ID_DOK_TRY_LIMIT, TAG_ID_DOK_MAX_TRY_LIMIT,
+                        TAG_ID_IOK_STATE, TAG_ID_IOK_TRY_LIMIT, TAG_ID_IOK_MAX_TRY_LIMIT},
+                new int[]{0, 0, 1, 1, 1, 1, 1, 1});
+        byte[] cardNumber = data[0];
+
+        return new CardSnapshot(cardNumber != null ? new String(cardNumber, Charset.forName("UTF-8")) : null,
+                data[1],
+                toDokState(data[2]), toTryLimit(data[3]), toTryLimit(data[4]),
+                toIokState(data[5]), toTryLimit(data[6]), toTryLimit(data[7]));
+    }
+
+    /**
+     * Reads more GET DATA tags of currently selected application in one batch. Tags answered by 6Cxx which
+     * reaches Card (secure messaging) are requested again in a second batch with the length the card asked for.
+     * @param expectedLengths Le for every tag, 0 when it should be taken from LeCache
+     * @return data for every tag, null where the card didn't return it
+     */
+    private byte[][] getData(int authId, int[] tagIds, int[] expectedLengths) throws CardException {
+        byte[] atr = c.getATR();
+        byte[][] result = new byte[tagIds.length][];
+        if (metadataCache != null) {
+            checkMetadataCache(atr);
+        }
+        getProfile(); //LeCache gets lengths known for this card
+        List<Integer> pending = new ArrayList<>();
+        List<byte[]> requests = new ArrayList<>();
+        boolean[] learned = new boolean[tagIds.length];
+        for (int i = 0; i < tagIds.length; i++) {
+            if (metadataCache != null) {
+                result[i] = metadataCache.get(authId, tagIds[i]);
+                if (result[i] != null) {
+                    continue;
+                }
+            }
+            int expectedLength = expectedLengths[i];
+            if (expectedLength == 0) {
+                int learnedLength = leCache.get(atr, authId, tagIds[i]);
+                if (learnedLength > 0) {
+                    expectedLength = learnedLength;
+                    learned[i] = true;
+                }
+            }
+            pending.add(i);
+            requests.add(createGetDataRequest(tagIds[i], authId, expectedLength));
+        }
+        if (pending.isEmpty()) {
+            return result;
+        }
+
+        long leResends = protocol.getLeResends();
+        List<IResponseAPDU> responses = transmitBatch(requests);
+        boolean batchResent = protocol.getLeResends() != leResends;
+        List<Integer> retries = new ArrayList<>();
+        List<byte[]> retryRequests = new ArrayList<>();
+        for (int j = 0; j < pending.size(); j++) {
+            int i = pending.get(j);
+            IResponseAPDU r = responses.get(j);
+            if (r.getSW() == 0x9000) {
+                int sentLe = HexUtils.byteToInt(requests.get(j)[4]);
+                learnLe(atr, tagIds[i], authId, learned[i], sentLe != 0 ? r.getDataLength() != sentLe : batchResent, r);
+                result[i] = r.getData();
+            } else if (r.getSW1() == 0x6c) { //secure messaging passes wrong Le to the caller
+                if (learned[i]) {
+                    leCache.recordMismatch();
+                }
+                leCache.put(atr, authId, tagIds[i], r.getSW2());
+                retries.add(i);
+                retryRequests.add(createGetDataRequest(tagIds[i], authId, r.getSW2()));
+            } else if (learned[i]) {
+                //card doesn't accept learned length anymore, forget it and discover it again
+                leCache.recordMismatch();
+                leCache.remove(atr, authId, tagIds[i]);
+                result[i] = transmitGetData(atr, tagIds[i], authId, 0);
+            }
+        }
+        if (!retries.isEmpty()) {
+            responses = transmitBatch(retryRequests);
+            for (int j = 0; j < retries.size(); j++) {
+                if (responses.get(j).getSW() == 0x9000) {
+                    result[retries.get(j)] = responses.get(j).getData();
+                }
+            }
+        }
+
+        if (metadataCache != null) {
+            for (int i : pending) {
+                metadataCache.put(authId, tagIds[i], result[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Remembers length of GET DATA answer when the card asked for other Le than was sent.
+     * @param resent true when the command was sent again with Le from 6Cxx
+     */
+    private void learnLe(byte[] atr, int tagId, int authId, boolean learned, boolean resent, IResponseAPDU r) {
+        if (resent) {
+            if (learned) {
+                leCache.recordMismatch();
+            }
+            leCache.put(atr, authId, tagId, r.getDataLength());
+        } else if (learned) {
+            leCache.recordAvoidedRetry();
+        }
+    }
+
+    private static byte[] createGetDataRequest(int tagId, int authId, int expectedLength) {
+        int p = authId << 4;
+        return new byte[]{
+                (byte) 0x80, (byte) 0xCA,
+                (byte) (p | 1),
+                (byte) (p | tagId), (byte) expectedLength
+        };
+    }
+
+    private static DokState toDokState(byte[] data) {
+        DokState result = DokState.None;
+        if (data != null && data.length > 0) {
+            int state = HexUtils.byteToInt(data[0]);
+            if ((state & 1) == 1) {
+                result = DokState.Normal;
+            }
+            if ((state & 4) == 4) {
+                result = DokState.Blocked;
             }
         }
+        return result;
+    }
+
+    private static IokState toIokState(byte[] data) {
+        IokState result = IokState.None;
+        if (data != null && data.length > 0) {
+            int state = HexUtils.byteToInt(data[0]);
+            if ((state & 1) == 1) {
+                result = IokState.Normal;
+            }
+            if ((state & 4) == 4) {
+                result = IokState.Blocked;
+            }
+        }
+        return result;
+    }
+
+    private static int toTryLimit(byte[] data) {
+        if (data != null && data.length > 0) {
+            return HexUtils.byteToInt(data[0]);
+        }
         return -1;
     }
 
@@ -264,7 +836,14 @@ public class Card {
             System.arraycopy(pinA.getBytes(), 0, request, 5, pinA.getBytes().length);
             System.arraycopy(pinB.getBytes(), 0, request, 15, pinB.getBytes().length);
 
-            IResponseAPDU r = c.transmit(c.createCommand(encryptAPDU(request)));
+            byte[] encryptedRequest = encryptAPDU(request);
+            if (encryptedRequest == null) {
+                return CardAuthorizationResult.CardCommunicationProblem;
+            }
+            IResponseAPDU r = transmit(encryptedRequest);
+            if (metadataCache != null) {
+                metadataCache.invalidate();
+            }
             int sw = r.getSW();
 
             if ((sw & 0xFFF0) == 0x63C0 || sw == 0x6983) {
@@ -277,6 +856,8 @@ public class Card {
                 result.setAttemptsRemaining(attemptsRemaining);
                 return result;
             } else if (sw != 0x9000) {
+                //card may have rejected the cryptogram, derive the key again next time
+                resetSecureCodeContext();
                 return CardAuthorizationResult.CardCommunicationProblem;
             }
             return result;
@@ -285,83 +866,362 @@ public class Card {
         }
     }
 
-    private byte[] encryptAPDU(byte[] apduRequest) throws CardException {
-        byte[] cardNumber = getData(TAG_ID_CARD_NUMBER, 0);
-        byte[] serialNumber = getSerialNumber();
-        byte[] keyChecksumValue = getKeyChecksumValue();
-        byte[] keyCounter = getData(TAG_ID_KEY_COUNTER, 1);
-
-        byte[] encKey = EncryptionUtils.getKeyByKeyChecksumValue(keyChecksumValue);
-        if (encKey != null) {
-            MasterSakC m = new MasterSakC(encKey);
-            SakC sakC = m.deriveEncryptionKey(serialNumber, cardNumber);
-            byte[] commandHeader = Arrays.copyOf(apduRequest, 5);
-            byte[] payload = Arrays.copyOfRange(apduRequest, 5, apduRequest.length);
-            byte[] encryptedPayload = sakC.encryptSecureCodeData(keyCounter, payload);
+    /**
+     * Forgets SakC derived for current card. It is also forgotten automatically when ATR changes,
+     * communication fails or card refuses encrypted PIN command.
+     */
+    public void resetSecureCodeContext() {
+        secureCodeContext = null;
+        secureCodeContextAtr = null;
+    }
 
-            commandHeader[0] = (byte) 0x8C;
-            commandHeader[4] = (byte) encryptedPayload.length;
-            return HexUtils.concatArrays(commandHeader, encryptedPayload);
+    private SecureCodeContext getSecureCodeContext() throws CardException {
+        byte[] atr = c.getATR();
+        if (secureCodeContext == null || !Arrays.equals(atr, secureCodeContextAtr)) {
+            byte[] cardNumber = getData(TAG_ID_CARD_NUMBER, 0);
+            byte[] serialNumber = getSerialNumber();
+            byte[] keyChecksumValue = getKeyChecksumValue();
+            secureCodeContext = SecureCodeContext.create(cardNumber, serialNumber, keyChecksumValue);
+            secureCodeContextAtr = secureCodeContext != null ? atr : null;
         }
+        return secureCodeContext;
+    }
 
+    private byte[] encryptAPDU(byte[] apduRequest) throws CardException {
+        SecureCodeContext context = getSecureCodeContext();
+        if (context != null) {
+            //counter changes with every secure code operation, so it is always read from card
+            byte[] keyCounter = getData(TAG_ID_KEY_COUNTER, 1);
+            return context.encryptAPDU(keyCounter, apduRequest);
+        }
         return null;
     }
 
     public Certificate getCertificate(Certificate.CertificateType type) throws CardException {
+        byte[] serialNumber = null;
+        if (certificateStore != null) {
+            serialNumber = getSerialNumber();
+            byte[] stored = certificateStore.get(serialNumber, type);
+            if (stored != null) {
+                return Certificate.parse(stored, type);
+            }
+        }
+
+        byte[] data = readCertificate(type);
+        if (certificateStore != null && serialNumber != null && data != null) {
+            try {
+                certificateStore.put(serialNumber, type, data);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return Certificate.parse(data, type);
+    }
+
+    /**
+     * Reads both certificates over one FILE_MANAGEMENT selection. Every file is handed to the parser thread as soon
+     * as it is read, so parsing of the first certificate overlaps with READ BINARY of the second one.
+     * @return certificates by type, missing certificates are not included
+     */
+    public Map<Certificate.CertificateType, Certificate> readAllCertificates() throws CardException {
+        return readAllCertificates(getCertificateParserExecutor());
+    }
+
+    public Map<Certificate.CertificateType, Certificate> readAllCertificates(Executor parserExecutor) throws CardException {
+        //short authorization certificate goes first, so the longer read of identification certificate hides its parsing
+        Certificate.CertificateType[] types = {Certificate.CertificateType.AUTHORIZATION, Certificate.CertificateType.IDENTIFICATION};
+        byte[] serialNumber = null;
+        if (certificateStore != null) {
+            serialNumber = getSerialNumber();
+        }
+        Map<Certificate.CertificateType, Future<Certificate>> parsed = new LinkedHashMap<>();
+        for (final Certificate.CertificateType type : types) {
+            byte[] data = certificateStore != null ? certificateStore.get(serialNumber, type) : null;
+            if (data == null) {
+                data = readCertificate(type);
+                if (certificateStore != null && serialNumber != null && data != null) {
+                    try {
+                        certificateStore.put(serialNumber, type, data);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            if (data != null) {
+                final byte[] certificateData = data;
+                FutureTask<Certificate> task = new FutureTask<>(new Callable<Certificate>() {
+                    @Override
+                    public Certificate call() {
+                        return Certificate.parse(certificateData, type);
+                    }
+                });
+                parserExecutor.execute(task);
+                parsed.put(type, task);
+            }
+        }
+
+        Map<Certificate.CertificateType, Certificate> result = new LinkedHashMap<>();
+        for (Map.Entry<Certificate.CertificateType, Future<Certificate>> entry : parsed.entrySet()) {
+            try {
+                result.put(entry.getKey(), entry.getValue().get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CardException(e);
+            } catch (ExecutionException e) {
+                throw new CardException(e.getCause());
+            }
+        }
+        return result;
+    }
+
+    private static synchronized Executor getCertificateParserExecutor() {
+        if (certificateParserExecutor == null) {
+            certificateParserExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "obcanka-certificate-parser");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return certificateParserExecutor;
+    }
+
+    private byte[] readCertificate(Certificate.CertificateType type) throws CardException {
         selectApplication(APP_ID_FILE_MANAGEMENT);
         if (type == Certificate.CertificateType.AUTHORIZATION) {
-            return Certificate.parse(readFile(FILE_ID_CERTIFICATE_AUTHORIZATION), type);
+            return readFile(FILE_ID_CERTIFICATE_AUTHORIZATION);
         }
         if (type == Certificate.CertificateType.IDENTIFICATION) {
-            return Certificate.parse(readFile(FILE_ID_CERTIFICATE_IDENTIFICATION), type);
+            return readFile(FILE_ID_CERTIFICATE_IDENTIFICATION);
         } else {
             return null;
         }
     }
 
     public byte[] readFile(int fileId) throws CardException {
+        byte[] fcp = selectFile(fileId);
+        if (fcp == null) {
+            return null;
+        }
+        int fileSize = getFileSize(fcp);
+        byte[] result = new byte[fileSize];
+        int read = readSelectedFile(fileId, fcp, ByteBuffer.wrap(result));
+        return read == fileSize ? result : Arrays.copyOf(result, read);
+    }
+
+    /**
+     * Reads whole file directly into given buffer, which can be also direct one.
+     * @return number of bytes written into dst or -1 if file doesn't exist
+     */
+    public int readFile(int fileId, ByteBuffer dst) throws CardException {
+        byte[] fcp = selectFile(fileId);
+        if (fcp == null) {
+            return -1;
+        }
+        int fileSize = getFileSize(fcp);
+        if (dst.remaining() < fileSize) {
+            throw new IllegalArgumentException("Buffer is too small for file of " + fileSize + " bytes.");
+        }
+        return readSelectedFile(fileId, fcp, dst);
+    }
+
+    /**
+     * Opens file for reading. READ BINARY chunks are requested lazily as the stream is consumed,
+     * card must not be used for anything else until the stream is fully read.
+     * @return stream with file content or null if file doesn't exist
+     */
+    public CardFileInputStream openFile(int fileId) throws CardException {
+        byte[] fcp = selectFile(fileId);
+        if (fcp == null) {
+            return null;
+        }
+        return new CardFileInputStream(this, getFileSize(fcp));
+    }
+
+    /**
+     * Selects elementary file.
+     * @return FCP of the file or null if file doesn't exist
+     */
+    private byte[] selectFile(int fileId) throws CardException {
         int h = fileId / 256;
         int l = fileId % 256;
 
         byte[] fileInfo = new byte[]{0x00, (byte) 0xA4, 0x08, 0x00, 0x02, (byte) h, (byte) l};
-        IResponseAPDU r = c.transmit(c.createCommand(fileInfo));
-        if (r.getSW1() == 0x61) { //you must call get response
-            byte[] getResponse = new byte[]{0x00, (byte) 0xC0, 0, 0, (byte) r.getSW2()};
-            r = c.transmit(c.createCommand(getResponse));
+        CardProfile profile = getProfile();
+        if (profile != null && Boolean.FALSE.equals(profile.getGetResponseAfterSelect())) {
+            fileInfo = HexUtils.concatArrays(fileInfo, new byte[]{0x00}); //FCP comes directly in the response
+        }
+        IResponseAPDU r = transmit(fileInfo); //61xx is followed by GET RESPONSE in ProtocolCardInterface
+        if (r.getSW() == 0x9000) {
+            session.fileSelected(fileId);
+            return r.getData();
         }
+        session.fileSelected(-1);
+        return null;
+    }
 
+    private static int getFileSize(byte[] fcp) {
+        return HexUtils.byteToInt(fcp[4]) * 256 + HexUtils.byteToInt(fcp[5]);
+    }
 
-        if (r.getSW() == 0x9000) {
-            int size = 0xD0;
-            //file exists
-            int offset = 0;
-            byte[] fileInfoData = r.getData();
-            int fileSize = HexUtils.byteToInt(fileInfoData[4]) * 256 + HexUtils.byteToInt(fileInfoData[5]);
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            do {
-                h = offset / 256;
-                l = offset % 256;
-                if (offset + size > fileSize) {
-                    size = fileSize - offset;
+    /**
+     * Reads selected file into dst. With file cache set, only the first chunk is read when the file fingerprint matches.
+     * @return number of bytes written into dst
+     */
+    private int readSelectedFile(int fileId, byte[] fcp, ByteBuffer dst) throws CardException {
+        int fileSize = getFileSize(fcp);
+        if (fileCache == null || fileSize == 0) {
+            return readBinary(dst, 0, fileSize);
+        }
+        byte[] firstChunk = readBinary(0, fileSize);
+        if (firstChunk == null || firstChunk.length == 0) {
+            return 0;
+        }
+        byte[] cached = fileCache.get(fileId, fcp, firstChunk);
+        if (cached != null && cached.length == fileSize) {
+            dst.put(cached);
+            return fileSize;
+        }
+
+        int start = dst.position();
+        dst.put(firstChunk);
+        int read = readBinary(dst, firstChunk.length, fileSize);
+        if (read == fileSize) {
+            byte[] content = new byte[fileSize];
+            ByteBuffer written = dst.duplicate();
+            written.position(start);
+            written.get(content);
+            fileCache.put(fileId, fcp, firstChunk, content);
+        }
+        return read;
+    }
+
+    private int readBinary(ByteBuffer dst, int offset, int fileSize) throws CardException {
+        while (offset < fileSize) {
+            if (readBinaryChunkSize != 0 && readBinaryChunkSize <= READ_BINARY_SHORT_CHUNK_SIZE && fileSize - offset > readBinaryChunkSize) {
+                int read = readBinaryBatch(dst, offset, fileSize);
+                if (read > offset) {
+                    offset = read;
+                    continue;
                 }
-                if (size <= 0) {
-                    break;
+            }
+            byte[] data = readBinary(offset, fileSize - offset);
+            if (data == null || data.length == 0) {
+                break;
+            }
+            dst.put(data);
+            offset += data.length;
+        }
+        return offset;
+    }
+
+    /**
+     * Requests all remaining chunks of already negotiated short size in one batch.
+     * @return offset after the last chunk read completely, chunks after a refused one are dropped
+     */
+    private int readBinaryBatch(ByteBuffer dst, int offset, int fileSize) throws CardException {
+        List<byte[]> requests = new ArrayList<>();
+        for (int chunkOffset = offset; chunkOffset < fileSize; chunkOffset += readBinaryChunkSize) {
+            requests.add(createReadBinaryRequest(chunkOffset, Math.min(fileSize - chunkOffset, readBinaryChunkSize)));
+        }
+        List<IResponseAPDU> responses = transmitBatch(requests);
+        for (IResponseAPDU r : responses) {
+            int size = Math.min(fileSize - offset, readBinaryChunkSize);
+            int length = r.getDataLength();
+            if (r.getSW() != 0x9000 || length == 0) {
+                break;
+            }
+            dst.put(r.getDataBuffer());
+            offset += length;
+            if (length != size) {
+                readBinaryChunkSize = Math.min(readBinaryChunkSize, length);
+                break; //card returned less than asked, following chunks have wrong offsets
+            }
+        }
+        return offset;
+    }
+
+    private static byte[] createReadBinaryRequest(int offset, int size) {
+        if (size > READ_BINARY_SHORT_CHUNK_SIZE) {
+            return new byte[]{0x00, (byte) 0xB0, (byte) (offset / 256), (byte) (offset % 256), 0, (byte) (size >> 8), (byte) size};
+        }
+        return new byte[]{0x00, (byte) 0xB0, (byte) (offset / 256), (byte) (offset % 256), (byte) size};
+    }
+
+    /**
+     * Reads next chunk of currently selected file. The largest chunk the card accepts is negotiated on first use:
+     * extended Le when ATR advertises it and the card interface can carry extended APDUs (T=1), short Le=0x00
+     * (256 bytes) otherwise. Secure messaging always uses short Le. 6700, 6Cxx and extended APDU refused by
+     * the reader lower the chunk size and the read is repeated.
+     * @param remaining number of bytes till the end of file
+     * @return chunk data or null when card refused to read
+     */
+    byte[] readBinary(int offset, int remaining) throws CardException {
+        if (readBinaryChunkSize == 0) {
+            CardProfile profile = getProfile();
+            boolean transportExtended = c.isExtendedLengthSupported() && secureSessionManager == null;
+            if (profile != null && profile.getExtendedLength() != null) {
+                extendedLengthEnabled = transportExtended && profile.getExtendedLength();
+            } else {
+                extendedLengthEnabled = transportExtended && AtrInfo.parse(c.getATR()).isExtendedLengthSupported();
+            }
+            readBinaryChunkSize = extendedLengthEnabled ? READ_BINARY_EXTENDED_CHUNK_SIZE : READ_BINARY_SHORT_CHUNK_SIZE;
+            if (profile != null && profile.getMaxReadBinary() > 0 && profile.getMaxReadBinary() < readBinaryChunkSize) {
+                setReadBinaryChunkSize(profile.getMaxReadBinary());
+            }
+        }
+        while (true) {
+            int size = Math.min(remaining, readBinaryChunkSize);
+            if (secureSessionManager != null || !c.isExtendedLengthSupported()) {
+                size = Math.min(size, READ_BINARY_SHORT_CHUNK_SIZE); //secure messaging and T=0 carry short APDUs only
+            }
+            boolean extended = size > READ_BINARY_SHORT_CHUNK_SIZE;
+            IResponseAPDU r;
+            try {
+                r = transmit(createReadBinaryRequest(offset, size), session.getCurrentChannel(), !extended);
+            } catch (CardException e) {
+                if (!extended) {
+                    throw e;
                 }
-                byte[] readFileRequest = new byte[]{0x00, (byte) 0xB0, (byte) h, (byte) l, (byte) size};
-                r = c.transmit(c.createCommand(readFileRequest));
-                if (r.getSW() == 0x9000) {
-                    try {
-                        bos.write(r.getData());
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                    offset += size;
+                r = null; //reader or driver refused extended APDU, e.g. T=0
+            }
+            if (r != null && r.getSW() == 0x9000) {
+                if (r.getDataLength() > 0 && r.getDataLength() < size) {
+                    readBinaryChunkSize = r.getDataLength(); //card gives less than asked, e.g. after 6Cxx resend
                 }
-            } while (r.getSW() == 0x9000);
-            return bos.toByteArray();
+                return r.getData();
+            } else if (r == null || r.getSW() == 0x6700 && extended) {
+                extendedLengthEnabled = false;
+                readBinaryChunkSize = READ_BINARY_SHORT_CHUNK_SIZE;
+            } else if (r.getSW() == 0x6700 && size > READ_BINARY_LEGACY_CHUNK_SIZE) {
+                readBinaryChunkSize = READ_BINARY_LEGACY_CHUNK_SIZE;
+            } else if (r.getSW1() == 0x6C && r.getSW2() != 0 && r.getSW2() < size) {
+                readBinaryChunkSize = r.getSW2();
+            } else {
+                return null;
+            }
         }
+    }
 
-        return null;
+    /**
+     * @return negotiated READ BINARY chunk size or 0 when no file was read yet
+     */
+    public int getReadBinaryChunkSize() {
+        return readBinaryChunkSize;
+    }
+
+    /**
+     * Forces READ BINARY chunk size, e.g. for readers known to have small buffers. Sizes above 256 need extended length support.
+     */
+    public void setReadBinaryChunkSize(int readBinaryChunkSize) {
+        this.readBinaryChunkSize = readBinaryChunkSize;
+        this.extendedLengthEnabled = readBinaryChunkSize > READ_BINARY_SHORT_CHUNK_SIZE;
+    }
+
+    public boolean isExtendedLengthEnabled() {
+        return extendedLengthEnabled;
     }
 
     public EncryptionToken createEncryptionToken() throws CardException {
@@ -373,14 +1233,13 @@ public class Card {
                         (byte) 0x7F, //tag id
                         (byte) 0x00
                 };
-        ICommandAPDU command = c.createCommand(request);
-        IResponseAPDU r = c.transmit(command);
+        IResponseAPDU r = transmit(request);
 
         if (r.getSW() != 0x9000) {
             throw new CardException("Cold not find ASN1 tag");
         }
         byte[] asn1Tag = r.getBytes();
-        System.out.println("ASN1 = " + HexUtils.bytesToHexString(asn1Tag)); //9f7f2a 409078971291615304008017570c1c60a79c129280171293801712948017000000010001183400000000 9000
+        //9f7f2a 409078971291615304008017570c1c60a79c129280171293801712948017000000010001183400000000 9000
 
         request = new byte[] // MANAGE SECURITY ENVIRONMENT, MSE SET
                 {
@@ -399,13 +1258,11 @@ public class Card {
                         (byte) 0x01, //pw_ref
                         (byte) 0x80  //pw_ref
                 };
-        command = c.createCommand(request);
-        r = c.transmit(command);
+        r = transmit(request);
 
         if (r.getSW() != 0x9000) {
             throw new CardException("Setting security environment failed.");
         }
-        System.out.println("Some response = " + HexUtils.bytesToHexString(r.getBytes())); //9000
 
 
         request = new byte[]
@@ -416,15 +1273,14 @@ public class Card {
                         (byte) 0x00,
                         (byte) 0x08 // 8 bytes of challenge
                 };
-        command = c.createCommand(request);
-        r = c.transmit(command);
+        r = transmit(request);
 
         if (r.getSW() != 0x9000) {
             throw new CardException("Failed to obtain challenge.");
         }
-        System.out.println("Some response = " + HexUtils.bytesToHexString(r.getBytes())); //6655e688cfb5b31c 9000
+        //6655e688cfb5b31c 9000
 
-        SecureRandom rnd = new SecureRandom();
+        SecureRandom rnd = random != null ? random : new SecureRandom();
         byte[] randomBytesA = new byte[8];
         byte[] randomBytesB = new byte[8];
         byte[] randomBytesC = new byte[32];
@@ -450,11 +1306,8 @@ public class Card {
                         (byte) array4.length//len ( should be 80 bytes.
                 };
         request = HexUtils.concatArrays(request, array4, new byte[]{0x00});
-        System.out.println("Long request = " + request.length + " " + array4.length);
-        command = c.createCommand(request);
-        r = c.transmit(command);
+        r = transmit(request);
         byte[] response = r.getBytes();
-        System.out.println("response = " + HexUtils.bytesToHexString(response));
         if (r.getSW() != 0x9000) {
             throw new CardException("Failed to authenticate.");
         }
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.card;
+
+import cz.paralelnipolis.obcanka.core.communication.CardException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream over file selected by {@link Card#openFile(int)}. Each READ BINARY is sent only when previous chunk was consumed.
+ */
+public class CardFileInputStream extends InputStream {
+    private Card card;
+    private int fileSize;
+    private int offset;
+
+    private byte[] chunk;
+    private int chunkPosition;
+
+    CardFileInputStream(Card card, int fileSize) {
+        this.card = card;
+        this.fileSize = fileSize;
+    }
+
+    public int getFileSize() {
+        return fileSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fillChunk()) {
+            return -1;
+        }
+        return chunk[chunkPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fillChunk()) {
+            return -1;
+        }
+        int count = Math.min(len, chunk.length - chunkPosition);
+        System.arraycopy(chunk, chunkPosition, b, off, count);
+        chunkPosition += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return chunk != null ? chunk.length - chunkPosition : 0;
+    }
+
+    private boolean fillChunk() throws IOException {
+        if (chunk != null && chunkPosition < chunk.length) {
+            return true;
+        }
+        if (offset >= fileSize) {
+            return false;
+        }
+        try {
+            chunk = card.readBinary(offset, fileSize - offset);
+        } catch (CardException e) {
+            throw new IOException(e);
+        }
+        if (chunk == null || chunk.length == 0) {
+            throw new IOException("Reading file failed at offset " + offset + ".");
+        }
+        chunkPosition = 0;
+        offset += chunk.length;
+        return true;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.card;
+
+import cz.paralelnipolis.obcanka.core.HexUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Known parameters of one card generation, see {@link CardProfileRegistry}. Unset parameters are negotiated
+ * at runtime the same way as for unknown cards.
+ */
+public class CardProfile {
+    public static final String PROTOCOL_T0 = "T=0";
+    public static final String PROTOCOL_T1 = "T=1";
+
+    private String name;
+    private byte[] historicalBytes = new byte[0];
+    private int maxReadBinary;
+    private Boolean extendedLength;
+    private String protocol;
+    private Boolean getResponseAfterSelect;
+    private Map<Integer, Integer> getDataLengths = new HashMap<>();
+
+    public CardProfile(String name, byte[] historicalBytes) {
+        this.name = name;
+        this.historicalBytes = historicalBytes != null ? historicalBytes : new byte[0];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return prefix of ATR historical bytes identifying the card generation
+     */
+    public byte[] getHistoricalBytes() {
+        return historicalBytes;
+    }
+
+    public boolean matches(byte[] historicalBytes) {
+        if (historicalBytes == null || historicalBytes.length < this.historicalBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < this.historicalBytes.length; i++) {
+            if (historicalBytes[i] != this.historicalBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return maximum Le of READ BINARY or 0 when it should be negotiated
+     */
+    public int getMaxReadBinary() {
+        return maxReadBinary;
+    }
+
+    public void setMaxReadBinary(int maxReadBinary) {
+        this.maxReadBinary = maxReadBinary;
+    }
+
+    /**
+     * @return whether card and reader accept extended Le or null when it should be taken from ATR
+     */
+    public Boolean getExtendedLength() {
+        return extendedLength;
+    }
+
+    public void setExtendedLength(Boolean extendedLength) {
+        this.extendedLength = extendedLength;
+    }
+
+    /**
+     * @return {@link #PROTOCOL_T0}, {@link #PROTOCOL_T1} or null when interface default should be used
+     */
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public void setProtocol(String protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * @return true when SELECT is answered by 61xx (T=0), false when FCP can be requested by Le directly,
+     * null when unknown
+     */
+    public Boolean getGetResponseAfterSelect() {
+        return getResponseAfterSelect;
+    }
+
+    public void setGetResponseAfterSelect(Boolean getResponseAfterSelect) {
+        this.getResponseAfterSelect = getResponseAfterSelect;
+    }
+
+    /**
+     * @return exact Le the card expects for GET DATA of given tag or -1 if it is not known
+     */
+    public int getDataLength(int authId, int tagId) {
+        Integer length = getDataLengths.get(authId << 8 | tagId);
+        return length != null ? length : -1;
+    }
+
+    /**
+     * @return known GET DATA lengths keyed by authId &lt;&lt; 8 | tagId
+     */
+    public Map<Integer, Integer> getDataLengths() {
+        return new HashMap<>(getDataLengths);
+    }
+
+    public void putDataLength(int authId, int tagId, int length) {
+        getDataLengths.put(authId << 8 | tagId, length);
+    }
+
+    @Override
+    public String toString() {
+        return "CardProfile{" +
+                "name=" + name +
+                ", historicalBytes=" + HexUtils.bytesToHexString(historicalBytes) +
+                ", maxReadBinary=" + maxReadBinary +
+                ", extendedLength=" + extendedLength +
+                ", protocol=" + protocol +
+                ", getResponseAfterSelect=" + getResponseAfterSelect +
+                ", getDataLengths=" + getDataLengths.size() +
+                '}';
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.card;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import cz.paralelnipolis.obcanka.core.HexUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Maps ATR historical bytes to {@link CardProfile}. The default registry loads profiles from file given by system
+ * property obcanka.profiles or from ~/.obcanka/profiles.json, so new card generations can be added without a release.
+ * File contains JSON array of profiles:
+ * <pre>
+ * [{"name": "...", "historicalBytes": "80 66 47 50", "maxReadBinary": 208, "extendedLength": false,
+ *   "protocol": "T=1", "getResponseAfterSelect": false, "getDataLengths": {"0:01": 9, "0:8B": 1}}]
+ * </pre>
+ * Keys of getDataLengths are authId:tagId in hex. When more profiles match, the one with the longest historical bytes wins.
+ * The file is read once per JVM, a malformed file is reported by every {@link #getDefault()} call.
+ */
+public class CardProfileRegistry {
+    public static final String PROFILES_FILE_PROPERTY = "obcanka.profiles";
+
+    private static CardProfileRegistry defaultRegistry;
+    private static IOException defaultRegistryError;
+
+    private final List<CardProfile> profiles = new CopyOnWriteArrayList<>();
+
+    /**
+     * @throws IllegalStateException when the profiles file can't be read or is malformed
+     */
+    public static synchronized CardProfileRegistry getDefault() {
+        if (defaultRegistry == null && defaultRegistryError == null) {
+            CardProfileRegistry registry = new CardProfileRegistry();
+            String path = System.getProperty(PROFILES_FILE_PROPERTY);
+            File file = path != null ? new File(path) : new File(System.getProperty("user.home"), ".obcanka" + File.separator + "profiles.json");
+            if (file.isFile()) {
+                try {
+                    registry.load(file);
+                } catch (IOException e) {
+                    defaultRegistryError = new IOException("Card profiles file " + file + " can't be loaded.", e);
+                }
+            }
+            if (defaultRegistryError == null) {
+                defaultRegistry = registry;
+            }
+        }
+        if (defaultRegistryError != null) {
+            throw new IllegalStateException(defaultRegistryError.getMessage(), defaultRegistryError.getCause());
+        }
+        return defaultRegistry;
+    }
+
+    public void register(CardProfile profile) {
+        profiles.add(profile);
+    }
+
+    public List<CardProfile> getProfiles() {
+        return new ArrayList<>(profiles);
+    }
+
+    public void load(File file) throws IOException {
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), Charset.forName("UTF-8"))) {
+            load(reader);
+        }
+    }
+
+    public void load(Reader reader) throws IOException {
+        List<CardProfile> loaded = new ArrayList<>();
+        try {
+            JsonElement element = new JsonParser().parse(reader);
+            if (!element.isJsonArray()) {
+                throw new IOException("Card profiles must be JSON array.");
+            }
+            for (JsonElement e : element.getAsJsonArray()) {
+                loaded.add(parseProfile(e.getAsJsonObject()));
+            }
+        } catch (JsonParseException | IllegalStateException | IllegalArgumentException e) {
+            throw new IOException("Invalid card profiles: " + e.getMessage(), e);
+        }
+        profiles.addAll(loaded);
+    }
+
+    private static CardProfile parseProfile(JsonObject json) {
+        JsonElement historicalBytes = json.get("historicalBytes");
+        if (historicalBytes == null || historicalBytes.isJsonNull()) {
+            throw new IllegalArgumentException("Profile without historicalBytes.");
+        }
+        CardProfile profile = new CardProfile(getString(json, "name"), HexUtils.hexStringToByteArray(historicalBytes.getAsString()));
+        if (has(json, "maxReadBinary")) {
+            profile.setMaxReadBinary(json.get("maxReadBinary").getAsInt());
+        }
+        if (has(json, "extendedLength")) {
+            profile.setExtendedLength(json.get("extendedLength").getAsBoolean());
+        }
+        profile.setProtocol(getString(json, "protocol"));
+        if (has(json, "getResponseAfterSelect")) {
+            profile.setGetResponseAfterSelect(json.get("getResponseAfterSelect").getAsBoolean());
+        }
+        if (has(json, "getDataLengths")) {
+            for (Map.Entry<String, JsonElement> entry : json.getAsJsonObject("getDataLengths").entrySet()) {
+                String[] key = entry.getKey().split(":");
+                if (key.length != 2) {
+                    throw new IllegalArgumentException("GET DATA length key must be authId:tagId, not " + entry.getKey());
+                }
+                profile.putDataLength(Integer.parseInt(key[0].trim(), 16), Integer.parseInt(key[1].trim(), 16), entry.getValue().getAsInt());
+            }
+        }
+        return profile;
+    }
+
+    private static boolean has(JsonObject json, String name) {
+        return json.has(name) && !json.get(name).isJsonNull();
+    }
+
+    private static String getString(JsonObject json, String name) {
+        return has(json, name) ? json.get(name).getAsString() : null;
+    }
+
+    /**
+     * @param atr as returned by ICardInterface.getATR(), either whole ATR or historical bytes
+     * @return matching profile or null
+     */
+    public CardProfile find(byte[] atr) {
+        byte[] historicalBytes = AtrInfo.parse(atr).getHistoricalBytes();
+        CardProfile result = null;
+        for (CardProfile profile : profiles) {
+            if (profile.matches(historicalBytes)
+                    && (result == null || profile.getHistoricalBytes().length > result.getHistoricalBytes().length)) {
+                result = profile;
+            }
+        }
+        return result;
+    }
+}
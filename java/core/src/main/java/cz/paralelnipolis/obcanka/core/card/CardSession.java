@@ -0,0 +1,188 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.card;
+
+import cz.paralelnipolis.obcanka.core.HexUtils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * State of the card as {@link Card} believes it is: ATR, selected applications with their logical channels
+ * and selected file. When card reset is detected (ATR change, CardException or status word typical for card
+ * that lost its state) the state moves to RESET and Card re-selects only what the next command needs.
+ * <pre>
+ * NEW --first command--&gt; ACTIVE --reset detected--&gt; RESET --state re-established--&gt; ACTIVE
+ * </pre>
+ */
+public class CardSession {
+    public enum State {
+        NEW,
+        ACTIVE,
+        RESET
+    }
+
+    private State state = State.NEW;
+    private byte[] atr;
+    private byte[] currentApplication;
+    private int currentChannel;
+    private Map<String, Integer> applicationChannels = new HashMap<>();
+    private int selectedFileId = -1;
+    private boolean logicalChannelsSupported = true;
+    private long resets;
+    private long recoveries;
+
+    /**
+     * @return true when card has different ATR than before, i.e. it was swapped
+     */
+    boolean updateAtr(byte[] atr) {
+        if (state == State.NEW) {
+            this.atr = atr;
+            state = State.ACTIVE;
+            return false;
+        }
+        if (Arrays.equals(this.atr, atr)) {
+            return false;
+        }
+        this.atr = atr;
+        logicalChannelsSupported = true;
+        markReset();
+        return true;
+    }
+
+    /**
+     * Forgets everything selected on the card.
+     */
+    void markReset() {
+        currentApplication = null;
+        currentChannel = 0;
+        applicationChannels.clear();
+        selectedFileId = -1;
+        if (state == State.ACTIVE) {
+            state = State.RESET;
+            resets++;
+        }
+    }
+
+    void recovered() {
+        state = State.ACTIVE;
+        recoveries++;
+    }
+
+    /**
+     * Status words answered by card which doesn't have the expected application or file selected anymore.
+     */
+    static boolean indicatesLostState(int sw) {
+        //6D00 and 6E00 are not included, they are answered to unsupported commands just as well
+        return sw == 0x6881 //logical channel not opened
+                || sw == 0x6986; //no current EF
+    }
+
+    void applicationSelected(byte[] appId, int channel, boolean keepOnChannel) {
+        currentApplication = appId;
+        currentChannel = channel;
+        selectedFileId = -1;
+        if (keepOnChannel) {
+            applicationChannels.values().remove(channel);
+            applicationChannels.put(HexUtils.bytesToHexString(appId), channel);
+        }
+        if (state == State.RESET) {
+            state = State.ACTIVE;
+        }
+    }
+
+    /**
+     * @return channel where the application is selected or -1
+     */
+    int getApplicationChannel(byte[] appId) {
+        Integer channel = applicationChannels.get(HexUtils.bytesToHexString(appId));
+        return channel != null ? channel : -1;
+    }
+
+    Map<String, Integer> getApplicationChannels() {
+        return applicationChannels;
+    }
+
+    void switchApplication(byte[] appId, int channel) {
+        currentApplication = appId;
+        currentChannel = channel;
+        selectedFileId = -1;
+    }
+
+    void fileSelected(int fileId) {
+        selectedFileId = fileId;
+    }
+
+    void setLogicalChannelsSupported(boolean logicalChannelsSupported) {
+        this.logicalChannelsSupported = logicalChannelsSupported;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public byte[] getAtr() {
+        return atr;
+    }
+
+    public byte[] getCurrentApplication() {
+        return currentApplication;
+    }
+
+    public int getCurrentChannel() {
+        return currentChannel;
+    }
+
+    /**
+     * @return id of file selected in current application or -1
+     */
+    public int getSelectedFileId() {
+        return selectedFileId;
+    }
+
+    public boolean isLogicalChannelsSupported() {
+        return logicalChannelsSupported;
+    }
+
+    /**
+     * @return number of detected resets or card swaps
+     */
+    public long getResets() {
+        return resets;
+    }
+
+    /**
+     * @return number of commands which were sent again after the state was re-established
+     */
+    public long getRecoveries() {
+        return recoveries;
+    }
+
+    @Override
+    public String toString() {
+        return "CardSession{" +
+                "state=" + state +
+                ", atr=" + (atr != null ? HexUtils.bytesToHexString(atr) : null) +
+                ", currentApplication=" + (currentApplication != null ? HexUtils.bytesToHexString(currentApplication) : null) +
+                ", currentChannel=" + currentChannel +
+                ", applicationChannels=" + applicationChannels +
+                ", selectedFileId=" + selectedFileId +
+                ", resets=" + resets +
+                ", recoveries=" + recoveries +
+                '}';
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.card;
+
+import cz.paralelnipolis.obcanka.core.HexUtils;
+import cz.paralelnipolis.obcanka.core.card.enums.DokState;
+import cz.paralelnipolis.obcanka.core.card.enums.IokState;
+
+/**
+ * Immutable copy of card metadata read by {@link Card#readSnapshot()}.
+ */
+public final class CardSnapshot {
+    private final String cardNumber;
+    private final byte[] serialNumber;
+    private final DokState dokState;
+    private final int dokTryLimit;
+    private final int dokMaxTryLimit;
+    private final IokState iokState;
+    private final int iokTryLimit;
+    private final int iokMaxTryLimit;
+
+    public CardSnapshot(String cardNumber, byte[] serialNumber,
+                        DokState dokState, int dokTryLimit, int dokMaxTryLimit,
+                        IokState iokState, int iokTryLimit, int iokMaxTryLimit) {
+        this.cardNumber = cardNumber;
+        this.serialNumber = serialNumber != null ? serialNumber.clone() : null;
+        this.dokState = dokState;
+        this.dokTryLimit = dokTryLimit;
+        this.dokMaxTryLimit = dokMaxTryLimit;
+        this.iokState = iokState;
+        this.iokTryLimit = iokTryLimit;
+        this.iokMaxTryLimit = iokMaxTryLimit;
+    }
+
+    public String getCardNumber() {
+        return cardNumber;
+    }
+
+    public byte[] getSerialNumber() {
+        return serialNumber != null ? serialNumber.clone() : null;
+    }
+
+    public DokState getDokState() {
+        return dokState;
+    }
+
+    public int getDokTryLimit() {
+        return dokTryLimit;
+    }
+
+    public int getDokMaxTryLimit() {
+        return dokMaxTryLimit;
+    }
+
+    public IokState getIokState() {
+        return iokState;
+    }
+
+    public int getIokTryLimit() {
+        return iokTryLimit;
+    }
+
+    public int getIokMaxTryLimit() {
+        return iokMaxTryLimit;
+    }
+
+    @Override
+    public String toString() {
+        return "CardSnapshot{" +
+                "cardNumber=" + cardNumber +
+                ", serialNumber=" + (serialNumber != null ? HexUtils.bytesToHexString(serialNumber) : null) +
+                ", dokState=" + dokState +
+                ", dokTryLimit=" + dokTryLimit +
+                ", dokMaxTryLimit=" + dokMaxTryLimit +
+                ", iokState=" + iokState +
+                ", iokTryLimit=" + iokTryLimit +
+                ", iokMaxTryLimit=" + iokMaxTryLimit +
+                '}';
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.card;
+
+import cz.paralelnipolis.obcanka.core.HexUtils;
+import cz.paralelnipolis.obcanka.core.encryption.EncryptionUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of file contents validated by file fingerprint. Fingerprint consists of file id, FCP returned by SELECT
+ * (size and other file attributes) and SHA-256 of the first READ BINARY chunk. When fingerprint of a file on the card
+ * matches cached one, {@link Card#readFile(int)} returns cached content and skips reading the remaining chunks.
+ * Reissued card has different certificate serial number at the beginning of the file, so its fingerprint never matches.
+ */
+public class FileCache {
+    public static final int DEFAULT_MAX_ENTRIES = 16;
+
+    private final LinkedHashMap<String, byte[]> entries;
+    private long hits;
+    private long misses;
+
+    public FileCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public FileCache(final int maxEntries) {
+        this.entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public synchronized byte[] get(int fileId, byte[] fcp, byte[] firstChunk) {
+        byte[] content = entries.get(fingerprint(fileId, fcp, firstChunk));
+        if (content == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return content.clone();
+    }
+
+    public synchronized void put(int fileId, byte[] fcp, byte[] firstChunk, byte[] content) {
+        entries.put(fingerprint(fileId, fcp, firstChunk), content.clone());
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private static String fingerprint(int fileId, byte[] fcp, byte[] firstChunk) {
+        return Integer.toHexString(fileId) + ":" + HexUtils.bytesToHexString(fcp) + ":"
+                + HexUtils.bytesToHexString(EncryptionUtils.sha256(firstChunk));
+    }
+}
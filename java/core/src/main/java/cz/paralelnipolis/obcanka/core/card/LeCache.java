@@ -0,0 +1,142 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.card;
+
+import cz.paralelnipolis.obcanka.core.HexUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers exact GET DATA response lengths learned from 6Cxx answers.
+ * Lengths are kept per ATR, so every card of the same generation benefits from the first one. Only tags which
+ * have the same length on every card are learned, lengths of e.g. card number differ between cards with one ATR.
+ */
+public class LeCache {
+    private static final LeCache DEFAULT = new LeCache();
+
+    private static final Set<Integer> FIXED_LENGTH_TAGS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            Card.TAG_ID_KEY_KCV, Card.TAG_ID_KEY_COUNTER,
+            Card.TAG_ID_DOK_STATE, Card.TAG_ID_DOK_TRY_LIMIT, Card.TAG_ID_DOK_MAX_TRY_LIMIT,
+            Card.TAG_ID_IOK_STATE, Card.TAG_ID_IOK_TRY_LIMIT, Card.TAG_ID_IOK_MAX_TRY_LIMIT)));
+
+    private final Map<String, Map<Integer, Integer>> lengthsByAtr = new ConcurrentHashMap<>();
+    private final AtomicLong avoidedRetries = new AtomicLong();
+    private final AtomicLong mismatches = new AtomicLong();
+
+    public static LeCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return learned length or -1 if nothing was learned yet
+     */
+    public int get(byte[] atr, int authId, int tagId) {
+        if (atr == null) {
+            return -1;
+        }
+        Map<Integer, Integer> lengths = lengthsByAtr.get(HexUtils.bytesToHexString(atr));
+        if (lengths != null) {
+            Integer length = lengths.get(key(authId, tagId));
+            if (length != null) {
+                return length;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Remembers length of given tag, ignored for tags whose length may differ between cards.
+     */
+    public void put(byte[] atr, int authId, int tagId, int length) {
+        if (atr == null || !isFixedLength(tagId)) {
+            return;
+        }
+        lengths(atr).put(key(authId, tagId), length);
+    }
+
+    private Map<Integer, Integer> lengths(byte[] atr) {
+        String atrKey = HexUtils.bytesToHexString(atr);
+        Map<Integer, Integer> lengths = lengthsByAtr.get(atrKey);
+        if (lengths == null) {
+            lengthsByAtr.putIfAbsent(atrKey, new ConcurrentHashMap<Integer, Integer>());
+            lengths = lengthsByAtr.get(atrKey);
+        }
+        return lengths;
+    }
+
+    /**
+     * Remembers length declared by a card profile, also for tags which are not learned from the card.
+     */
+    public void putDeclared(byte[] atr, int authId, int tagId, int length) {
+        if (atr == null) {
+            return;
+        }
+        lengths(atr).put(key(authId, tagId), length);
+    }
+
+    public void remove(byte[] atr, int authId, int tagId) {
+        if (atr == null) {
+            return;
+        }
+        Map<Integer, Integer> lengths = lengthsByAtr.get(HexUtils.bytesToHexString(atr));
+        if (lengths != null) {
+            lengths.remove(key(authId, tagId));
+        }
+    }
+
+    public void clear() {
+        lengthsByAtr.clear();
+    }
+
+    void recordAvoidedRetry() {
+        avoidedRetries.incrementAndGet();
+    }
+
+    void recordMismatch() {
+        mismatches.incrementAndGet();
+    }
+
+    /**
+     * @return number of GET DATA round trips saved by sending learned Le on the first try
+     */
+    public long getAvoidedRetries() {
+        return avoidedRetries.get();
+    }
+
+    /**
+     * @return number of times card disagreed with learned Le and length had to be discovered again
+     */
+    public long getMismatches() {
+        return mismatches.get();
+    }
+
+    /**
+     * @return true when the tag has the same length on every card of one generation
+     */
+    public static boolean isFixedLength(int tagId) {
+        return FIXED_LENGTH_TAGS.contains(tagId & 0xFF);
+    }
+
+    private static int key(int authId, int tagId) {
+        return (authId & 0xFF) << 8 | (tagId & 0xFF);
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.card;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read-through cache of GET DATA values used by {@link Card}.
+ * Card number, certificate serial number and KCV are kept until invalidated,
+ * DOK/IOK state and try limits expire after a short time to live. Other tags are never cached.
+ * Whole content is dropped when card serial number or ATR changes, PIN is changed or unblocked or a CardException
+ * is raised. ATR alone doesn't identify the card (historical bytes are the same for the whole card generation),
+ * so Card reads the serial number once per session and passes it to {@link #checkSerialNumber(byte[])}
+ * before any cached value is used.
+ */
+public class MetadataCache {
+    public static final int DEFAULT_MAX_ENTRIES = 32;
+    public static final long DEFAULT_VOLATILE_TTL_MILLIS = 2000;
+
+    private static class Entry {
+        private final byte[] data;
+        private final long expiresAt;
+
+        Entry(byte[] data, long expiresAt) {
+            this.data = data;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxEntries;
+    private final long volatileTtlMillis;
+    private final LinkedHashMap<Integer, Entry> entries;
+    private byte[] atr;
+    private byte[] serialNumber;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public MetadataCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_VOLATILE_TTL_MILLIS);
+    }
+
+    public MetadataCache(final int maxEntries, long volatileTtlMillis) {
+        this.maxEntries = maxEntries;
+        this.volatileTtlMillis = volatileTtlMillis;
+        this.entries = new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                if (size() > MetadataCache.this.maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Drops all entries when card in the reader presents different ATR than the one cached values belong to.
+     */
+    public synchronized void checkAtr(byte[] currentAtr) {
+        if (!Arrays.equals(atr, currentAtr)) {
+            entries.clear();
+            atr = currentAtr != null ? currentAtr.clone() : null;
+        }
+    }
+
+    /**
+     * Drops all entries when they belong to card with other serial number than the one read from the card now.
+     */
+    public synchronized void checkSerialNumber(byte[] currentSerialNumber) {
+        if (!Arrays.equals(serialNumber, currentSerialNumber)) {
+            entries.clear();
+            serialNumber = currentSerialNumber != null ? currentSerialNumber.clone() : null;
+        }
+    }
+
+    public synchronized byte[] get(int authId, int tagId) {
+        if (!isCacheable(authId, tagId)) {
+            return null;
+        }
+        Integer key = key(authId, tagId);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.data.clone();
+    }
+
+    public synchronized void put(int authId, int tagId, byte[] data) {
+        if (data == null || !isCacheable(authId, tagId)) {
+            return;
+        }
+        long expiresAt = isImmutable(authId, tagId) ? Long.MAX_VALUE : System.currentTimeMillis() + volatileTtlMillis;
+        entries.put(key(authId, tagId), new Entry(data.clone(), expiresAt));
+    }
+
+    public synchronized void invalidate() {
+        entries.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getVolatileTtlMillis() {
+        return volatileTtlMillis;
+    }
+
+    private static boolean isImmutable(int authId, int tagId) {
+        if (authId == 0) {
+            return tagId == Card.TAG_ID_CARD_NUMBER || tagId == Card.TAG_ID_CERTIFICATE_SERIAL_NUMBER;
+        }
+        return authId == 1 && tagId == Card.TAG_ID_KEY_KCV;
+    }
+
+    private static boolean isVolatile(int authId, int tagId) {
+        if (authId != 0) {
+            return false;
+        }
+        switch (tagId) {
+            case Card.TAG_ID_DOK_STATE:
+            case Card.TAG_ID_DOK_TRY_LIMIT:
+            case Card.TAG_ID_DOK_MAX_TRY_LIMIT:
+            case Card.TAG_ID_IOK_STATE:
+            case Card.TAG_ID_IOK_TRY_LIMIT:
+            case Card.TAG_ID_IOK_MAX_TRY_LIMIT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isCacheable(int authId, int tagId) {
+        return isImmutable(authId, tagId) || isVolatile(authId, tagId);
+    }
+
+    private static int key(int authId, int tagId) {
+        return (authId & 0xFF) << 8 | (tagId & 0xFF);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MetadataCache{" +
+                "size=" + entries.size() +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                '}';
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.card;
+
+import cz.paralelnipolis.obcanka.core.communication.CardException;
+import cz.paralelnipolis.obcanka.core.communication.ICardInterface;
+import cz.paralelnipolis.obcanka.core.communication.ICommandAPDU;
+import cz.paralelnipolis.obcanka.core.communication.IResponseAPDU;
+import cz.paralelnipolis.obcanka.core.encryption.EncryptionToken;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Keeps one secure messaging session (EncryptionToken) for a card. The handshake from {@link Card#createEncryptionToken()}
+ * is done on first use and then only again when the previous session can't be trusted:
+ * <ul>
+ * <li>any CardException during wrapped transmit, e.g. MAC failure, as the send sequence counter may be out of sync</li>
+ * <li>ATR has changed, i.e. another card was inserted</li>
+ * <li>card answered 6987/6988, i.e. it lost the session after reset. Such command was not executed, so it is sent once
+ * more over new session.</li>
+ * </ul>
+ * Use {@link Card#setSecureSessionManager(SecureSessionManager)} to send all Card commands over the session.
+ */
+public class SecureSessionManager {
+    private static final int SW_SM_DATA_OBJECTS_MISSING = 0x6987;
+    private static final int SW_SM_DATA_OBJECTS_INCORRECT = 0x6988;
+
+    private final ICardInterface ci;
+    private EncryptionToken token;
+    private byte[] tokenAtr;
+    private long handshakes;
+    private SecureRandom random;
+
+    public SecureSessionManager(ICardInterface ci) {
+        this.ci = ci;
+    }
+
+    public synchronized IResponseAPDU transmit(ICommandAPDU command) throws CardException {
+        IResponseAPDU r = transmitOverSession(command);
+        if (r.getSW() == SW_SM_DATA_OBJECTS_MISSING || r.getSW() == SW_SM_DATA_OBJECTS_INCORRECT) {
+            invalidate();
+            r = transmitOverSession(command);
+        }
+        return r;
+    }
+
+    private IResponseAPDU transmitOverSession(ICommandAPDU command) throws CardException {
+        EncryptionToken t = getToken();
+        try {
+            return t.transmit(ci, command);
+        } catch (CardException e) {
+            invalidate();
+            throw e;
+        }
+    }
+
+    /**
+     * @return token of current session, establishes new session when there is none
+     */
+    public synchronized EncryptionToken getToken() throws CardException {
+        byte[] atr = ci.getATR();
+        if (token == null || !Arrays.equals(atr, tokenAtr)) {
+            token = null;
+            //handshake must not go over the session itself, so plain Card is used
+            Card card = new Card(ci);
+            card.setRandom(random);
+            token = card.createEncryptionToken();
+            tokenAtr = atr;
+            handshakes++;
+        }
+        return token;
+    }
+
+    /**
+     * @see Card#setRandom(SecureRandom)
+     */
+    public synchronized void setRandom(SecureRandom random) {
+        this.random = random;
+    }
+
+    public synchronized boolean isEstablished() {
+        return token != null;
+    }
+
+    /**
+     * Forces new handshake before next command.
+     */
+    public synchronized void invalidate() {
+        token = null;
+        tokenAtr = null;
+    }
+
+    public synchronized long getHandshakes() {
+        return handshakes;
+    }
+}
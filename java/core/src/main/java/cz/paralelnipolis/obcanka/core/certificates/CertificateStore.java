@@ -0,0 +1,313 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.certificates;
+
+import cz.paralelnipolis.obcanka.core.HexUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Local store of certificates DER data keyed by card serial number and certificate type.
+ * <p>
+ * Data are kept in append-only memory mapped file. Every record is protected by CRC32, so record torn by crash
+ * is detected on open and the file is truncated back to the last complete record. Newer record for the same key
+ * replaces older one, in-memory index points to the newest. When the file reaches maximum size, live records are
+ * copied into new file which replaces the old one (atomically where the file system supports it). When the old
+ * file can't be replaced, the store keeps using it.
+ * <p>
+ * Record layout: magic(4) keyLength(4) key dataLength(4) data crc32(4). dataLength -1 marks removed entry.
+ */
+public class CertificateStore {
+    public static final int DEFAULT_MAX_SIZE = 1024 * 1024;
+
+    private static final int FILE_MAGIC = 0x4F424353; //OBCS
+    private static final int FILE_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_MAGIC = 0x43455254; //CERT
+    private static final int RECORD_OVERHEAD = 16;
+
+    private static class IndexEntry {
+        private final int dataPosition;
+        private final int dataLength;
+
+        IndexEntry(int dataPosition, int dataLength) {
+            this.dataPosition = dataPosition;
+            this.dataLength = dataLength;
+        }
+    }
+
+    private final File file;
+    private final int maxSize;
+    private final Map<String, IndexEntry> index = new HashMap<>();
+    private RandomAccessFile raf;
+    private MappedByteBuffer buffer;
+    private int writePosition;
+    private int liveBytes;
+
+    public CertificateStore(File file) throws IOException {
+        this(file, DEFAULT_MAX_SIZE);
+    }
+
+    public CertificateStore(File file, int maxSize) throws IOException {
+        if (maxSize <= HEADER_SIZE + RECORD_OVERHEAD) {
+            throw new IllegalArgumentException("Maximum size is too small.");
+        }
+        this.file = file;
+        this.maxSize = maxSize;
+        open();
+    }
+
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        boolean empty = raf.length() == 0;
+        int mappedSize = (int) Math.max(maxSize, raf.length());
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mappedSize);
+        index.clear();
+        liveBytes = 0;
+        if (empty) {
+            buffer.putInt(0, FILE_MAGIC);
+            buffer.putInt(4, FILE_VERSION);
+            buffer.force();
+            writePosition = HEADER_SIZE;
+        } else {
+            if (buffer.getInt(0) != FILE_MAGIC || buffer.getInt(4) != FILE_VERSION) {
+                close();
+                throw new IOException("File " + file + " is not a certificate store.");
+            }
+            load();
+        }
+    }
+
+    private void load() {
+        int position = HEADER_SIZE;
+        while (true) {
+            int recordLength = validRecordLength(position);
+            if (recordLength < 0) {
+                break;
+            }
+            int keyLength = buffer.getInt(position + 4);
+            String key = readKey(position + 8, keyLength);
+            int dataLength = buffer.getInt(position + 8 + keyLength);
+            updateIndex(key, position + 12 + keyLength, dataLength);
+            position += recordLength;
+        }
+        writePosition = position;
+        //clear whatever was left after last complete record, e.g. half written record
+        if (writePosition + 4 <= buffer.capacity()) {
+            buffer.putInt(writePosition, 0);
+        }
+    }
+
+    /**
+     * @return length of complete record at given position or -1 if there is none
+     */
+    private int validRecordLength(int position) {
+        if (position + RECORD_OVERHEAD > buffer.capacity() || buffer.getInt(position) != RECORD_MAGIC) {
+            return -1;
+        }
+        int keyLength = buffer.getInt(position + 4);
+        if (keyLength < 0 || position + RECORD_OVERHEAD + keyLength > buffer.capacity()) {
+            return -1;
+        }
+        int dataLength = buffer.getInt(position + 8 + keyLength);
+        int storedDataLength = Math.max(dataLength, 0);
+        int recordLength = RECORD_OVERHEAD + keyLength + storedDataLength;
+        if (dataLength < -1 || position + recordLength > buffer.capacity()) {
+            return -1;
+        }
+        int crcPosition = position + recordLength - 4;
+        if (crc(position + 4, crcPosition) != buffer.getInt(crcPosition)) {
+            return -1;
+        }
+        return recordLength;
+    }
+
+    private int crc(int from, int to) {
+        CRC32 crc = new CRC32();
+        for (int i = from; i < to; i++) {
+            crc.update(buffer.get(i));
+        }
+        return (int) crc.getValue();
+    }
+
+    private String readKey(int position, int keyLength) {
+        byte[] key = new byte[keyLength];
+        for (int i = 0; i < keyLength; i++) {
+            key[i] = buffer.get(position + i);
+        }
+        return new String(key);
+    }
+
+    private void updateIndex(String key, int dataPosition, int dataLength) {
+        IndexEntry old = index.remove(key);
+        if (old != null) {
+            liveBytes -= RECORD_OVERHEAD + key.length() + old.dataLength;
+        }
+        if (dataLength >= 0) {
+            index.put(key, new IndexEntry(dataPosition, dataLength));
+            liveBytes += RECORD_OVERHEAD + key.length() + dataLength;
+        }
+    }
+
+    private static String key(byte[] serialNumber, Certificate.CertificateType type) {
+        return HexUtils.bytesToHexString(serialNumber) + "/" + type.name();
+    }
+
+    public synchronized byte[] get(byte[] serialNumber, Certificate.CertificateType type) {
+        if (buffer == null || serialNumber == null) {
+            return null;
+        }
+        IndexEntry entry = index.get(key(serialNumber, type));
+        if (entry == null) {
+            return null;
+        }
+        byte[] data = new byte[entry.dataLength];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = buffer.get(entry.dataPosition + i);
+        }
+        return data;
+    }
+
+    public synchronized void put(byte[] serialNumber, Certificate.CertificateType type, byte[] data) throws IOException {
+        append(key(serialNumber, type), data);
+    }
+
+    public synchronized void remove(byte[] serialNumber, Certificate.CertificateType type) throws IOException {
+        String key = key(serialNumber, type);
+        if (index.containsKey(key)) {
+            append(key, null);
+        }
+    }
+
+    private void append(String key, byte[] data) throws IOException {
+        if (buffer == null) {
+            throw new IOException("Certificate store is closed.");
+        }
+        byte[] keyBytes = key.getBytes();
+        int dataLength = data != null ? data.length : 0;
+        int recordLength = RECORD_OVERHEAD + keyBytes.length + dataLength;
+        if (writePosition + recordLength > maxSize) {
+            compact();
+            if (writePosition + recordLength > maxSize) {
+                throw new IOException("Certificate store is full.");
+            }
+        }
+        int position = writePosition;
+        buffer.position(position + 4);
+        buffer.putInt(keyBytes.length);
+        buffer.put(keyBytes);
+        buffer.putInt(data != null ? data.length : -1);
+        if (data != null) {
+            buffer.put(data);
+        }
+        buffer.putInt(crc(position + 4, position + recordLength - 4));
+        if (position + recordLength + 4 <= buffer.capacity()) {
+            buffer.putInt(0);
+        }
+        //magic is written last, so record becomes visible only when it is complete
+        buffer.putInt(position, RECORD_MAGIC);
+        buffer.force();
+        writePosition = position + recordLength;
+        updateIndex(key, position + 12 + keyBytes.length, data != null ? data.length : -1);
+    }
+
+    /**
+     * Rewrites the store so it contains only the newest record for every key.
+     */
+    public synchronized void compact() throws IOException {
+        if (buffer == null) {
+            throw new IOException("Certificate store is closed.");
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        Files.deleteIfExists(tmp.toPath());
+        Map<String, byte[]> live = new HashMap<>();
+        for (Map.Entry<String, IndexEntry> entry : index.entrySet()) {
+            byte[] data = new byte[entry.getValue().dataLength];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = buffer.get(entry.getValue().dataPosition + i);
+            }
+            live.put(entry.getKey(), data);
+        }
+        close();
+
+        try {
+            CertificateStore compacted = new CertificateStore(tmp, maxSize);
+            for (Map.Entry<String, byte[]> entry : live.entrySet()) {
+                compacted.append(entry.getKey(), entry.getValue());
+            }
+            compacted.close();
+            replace(tmp, file);
+        } finally {
+            //old file stays in place when it can't be replaced, e.g. on Windows while its mapping is still alive
+            Files.deleteIfExists(tmp.toPath());
+            open();
+        }
+    }
+
+    /**
+     * Moves compacted file over the store file.
+     */
+    void replace(File compacted, File target) throws IOException {
+        try {
+            Files.move(compacted.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(compacted.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return bytes occupied by all records including replaced and removed ones
+     */
+    public synchronized int getUsedBytes() {
+        return writePosition;
+    }
+
+    /**
+     * @return bytes occupied by newest records only, i.e. size of the store after compaction
+     */
+    public synchronized int getLiveBytes() {
+        return HEADER_SIZE + liveBytes;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized void close() throws IOException {
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+        }
+        if (raf != null) {
+            raf.close();
+            raf = null;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.communication;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Command backed by a ByteBuffer, e.g. a slice of a larger script or batch buffer.
+ */
+public class BufferCommandAPDU implements ICommandAPDU {
+    private final ByteBuffer buffer;
+    private byte[] data;
+
+    /**
+     * @param command whole command between position and limit, it is not copied
+     */
+    public BufferCommandAPDU(ByteBuffer command) {
+        if (command.remaining() < 4) {
+            throw new IllegalArgumentException("Command must contain at least CLA INS P1 P2.");
+        }
+        this.buffer = command.slice();
+    }
+
+    @Override
+    public ByteBuffer getBuffer() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    @Override
+    public byte[] getData() {
+        if (data == null) {
+            if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.array().length == buffer.limit()) {
+                data = buffer.array();
+            } else {
+                data = new byte[buffer.limit()];
+                getBuffer().get(data);
+            }
+        }
+        return data;
+    }
+}
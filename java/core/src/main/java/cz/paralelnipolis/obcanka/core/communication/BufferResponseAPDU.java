@@ -0,0 +1,100 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.communication;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Response backed by a ByteBuffer. SW and data views are read from the buffer directly, byte arrays are
+ * created only when {@link #getData()} or {@link #getBytes()} is called and then kept.
+ */
+public class BufferResponseAPDU implements IResponseAPDU {
+    private final ByteBuffer buffer;
+    private byte[] data;
+    private byte[] bytes;
+
+    /**
+     * @param response whole response including SW between position and limit, it is not copied
+     */
+    public BufferResponseAPDU(ByteBuffer response) {
+        if (response.remaining() < 2) {
+            throw new IllegalArgumentException("Response must contain at least SW.");
+        }
+        this.buffer = response.slice();
+    }
+
+    public static BufferResponseAPDU wrap(byte[] response) {
+        return new BufferResponseAPDU(ByteBuffer.wrap(response));
+    }
+
+    public static BufferResponseAPDU wrap(byte[] response, int offset, int length) {
+        return new BufferResponseAPDU(ByteBuffer.wrap(response, offset, length));
+    }
+
+    @Override
+    public int getSW1() {
+        return buffer.get(buffer.limit() - 2) & 0xFF;
+    }
+
+    @Override
+    public int getSW2() {
+        return buffer.get(buffer.limit() - 1) & 0xFF;
+    }
+
+    @Override
+    public int getSW() {
+        return getSW1() << 8 | getSW2();
+    }
+
+    @Override
+    public int getDataLength() {
+        return buffer.limit() - 2;
+    }
+
+    @Override
+    public ByteBuffer getDataBuffer() {
+        ByteBuffer result = buffer.asReadOnlyBuffer();
+        result.limit(getDataLength());
+        return result.slice();
+    }
+
+    @Override
+    public ByteBuffer getBuffer() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    @Override
+    public byte[] getData() {
+        if (data == null) {
+            data = new byte[getDataLength()];
+            getDataBuffer().get(data);
+        }
+        return data;
+    }
+
+    @Override
+    public byte[] getBytes() {
+        if (bytes == null) {
+            if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.array().length == buffer.limit()) {
+                bytes = buffer.array(); //buffer wraps exactly the response
+            } else {
+                bytes = new byte[buffer.limit()];
+                getBuffer().get(bytes);
+            }
+        }
+        return bytes;
+    }
+}
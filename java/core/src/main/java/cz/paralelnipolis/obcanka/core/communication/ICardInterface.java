@@ -15,8 +15,49 @@
  */
 package cz.paralelnipolis.obcanka.core.communication;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public interface ICardInterface {
     IResponseAPDU transmit(ICommandAPDU command) throws CardException;
     ICommandAPDU createCommand(byte[] commandData);
     byte[] getATR();
+
+    /**
+     * Transmits commands which don't depend on each other's responses. Implementations may skip per-call checks
+     * and reuse buffers; this default sends them one by one.
+     * @return responses in the same order as commands
+     */
+    default List<IResponseAPDU> transmitBatch(List<ICommandAPDU> commands) throws CardException {
+        List<IResponseAPDU> responses = new ArrayList<>(commands.size());
+        for (ICommandAPDU command : commands) {
+            responses.add(transmit(command));
+        }
+        return responses;
+    }
+
+    /**
+     * @return true when the transport can carry extended length APDUs (e.g. T=1), false when it is unknown
+     * or not possible (T=0 readers refuse them before they reach the card)
+     */
+    default boolean isExtendedLengthSupported() {
+        return false;
+    }
+
+    /**
+     * Opens logical channel by MANAGE CHANNEL. Transports which don't pass MANAGE CHANNEL through (javax.smartcardio)
+     * open it their own way and send commands to the channel encoded in their CLA.
+     * @return number of opened channel, 0 when card has no free channel, -1 when logical channels aren't supported
+     */
+    default int openLogicalChannel() throws CardException {
+        IResponseAPDU r = transmit(createCommand(new byte[]{0x00, 0x70, 0x00, 0x00, 0x01}));
+        if (r.getSW() == 0x9000 && r.getData().length == 1) {
+            return r.getData()[0] & 0xFF;
+        }
+        return r.getSW() == 0x6A81 ? 0 : -1; //6A81 means no more free channels
+    }
+
+    default void closeLogicalChannel(int channel) throws CardException {
+        transmit(createCommand(new byte[]{0x00, 0x70, (byte) 0x80, (byte) channel}));
+    }
 }
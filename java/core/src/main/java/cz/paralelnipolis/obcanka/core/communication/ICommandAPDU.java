@@ -15,6 +15,15 @@
  */
 package cz.paralelnipolis.obcanka.core.communication;
 
+import java.nio.ByteBuffer;
+
 public interface ICommandAPDU {
     byte[] getData();
+
+    /**
+     * @return read-only view of the whole command
+     */
+    default ByteBuffer getBuffer() {
+        return ByteBuffer.wrap(getData()).asReadOnlyBuffer();
+    }
 }
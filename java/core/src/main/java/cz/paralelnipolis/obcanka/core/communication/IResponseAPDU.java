@@ -15,10 +15,30 @@
  */
 package cz.paralelnipolis.obcanka.core.communication;
 
+import java.nio.ByteBuffer;
+
 public interface IResponseAPDU {
     byte[] getData();
     int getSW();
     int getSW1();
     int getSW2();
     byte[] getBytes();
+
+    default int getDataLength() {
+        return getData().length;
+    }
+
+    /**
+     * @return read-only view of response data without SW
+     */
+    default ByteBuffer getDataBuffer() {
+        return ByteBuffer.wrap(getData()).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return read-only view of whole response including SW
+     */
+    default ByteBuffer getBuffer() {
+        return ByteBuffer.wrap(getBytes()).asReadOnlyBuffer();
+    }
 }
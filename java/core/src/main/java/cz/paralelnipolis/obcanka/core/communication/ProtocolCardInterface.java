@@ -0,0 +1,223 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.communication;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Resolves T=0 transport status words so callers see only the final response:
+ * 61xx is followed by GET RESPONSE until all data is collected and 6Cxx (wrong Le) resends the command
+ * with the Le the card asked for. Number of additional commands per transmit is limited.
+ */
+public class ProtocolCardInterface implements ICardInterface {
+    public static final int DEFAULT_MAX_ADDITIONAL_COMMANDS = 64;
+
+    private ICardInterface targetCardInterface;
+    private int maxAdditionalCommands;
+    private long getResponses;
+    private long leResends;
+
+    public ProtocolCardInterface(ICardInterface targetCardInterface) {
+        this(targetCardInterface, DEFAULT_MAX_ADDITIONAL_COMMANDS);
+    }
+
+    /**
+     * @param maxAdditionalCommands maximum number of GET RESPONSE and wrong Le resends following one command
+     */
+    public ProtocolCardInterface(ICardInterface targetCardInterface, int maxAdditionalCommands) {
+        if (maxAdditionalCommands < 1) {
+            throw new IllegalArgumentException("At least one additional command must be allowed.");
+        }
+        this.targetCardInterface = targetCardInterface;
+        this.maxAdditionalCommands = maxAdditionalCommands;
+    }
+
+    /**
+     * @return given interface if it already handles transport status words, otherwise the interface decorated
+     */
+    public static ProtocolCardInterface wrap(ICardInterface cardInterface) {
+        if (cardInterface instanceof ProtocolCardInterface) {
+            return (ProtocolCardInterface) cardInterface;
+        }
+        return new ProtocolCardInterface(cardInterface);
+    }
+
+    @Override
+    public IResponseAPDU transmit(ICommandAPDU command) throws CardException {
+        return resolve(command, targetCardInterface.transmit(command));
+    }
+
+    /**
+     * Sends the batch to the target interface in parts, each ending with a command which expects response data.
+     * Card keeps data announced by 61xx only until the next command, so such a command has to be resolved
+     * before the rest of the batch is sent.
+     */
+    @Override
+    public List<IResponseAPDU> transmitBatch(List<ICommandAPDU> commands) throws CardException {
+        List<IResponseAPDU> responses = new ArrayList<>(commands.size());
+        int from = 0;
+        while (from < commands.size()) {
+            int to = from;
+            while (to < commands.size() - 1 && !hasLe(commands.get(to).getData())) {
+                to++;
+            }
+            List<ICommandAPDU> part = commands.subList(from, to + 1);
+            List<IResponseAPDU> partResponses = targetCardInterface.transmitBatch(part);
+            for (int i = 0; i < partResponses.size(); i++) {
+                responses.add(resolve(part.get(i), partResponses.get(i)));
+            }
+            from = to + 1;
+        }
+        return responses;
+    }
+
+    /**
+     * @return true for case 2 and case 4 commands, only those can be answered by 61xx or 6Cxx
+     */
+    static boolean hasLe(byte[] request) {
+        if (request.length <= 4) { //case 1
+            return false;
+        }
+        if (request.length == 5) { //short case 2
+            return true;
+        }
+        int lc = request[4] & 0xFF;
+        if (lc != 0) {
+            return request.length > 5 + lc; //short case 4
+        }
+        if (request.length == 7) { //extended case 2
+            return true;
+        }
+        int extendedLc = (request[5] & 0xFF) << 8 | request[6] & 0xFF;
+        return request.length > 7 + extendedLc; //extended case 4
+    }
+
+    private IResponseAPDU resolve(ICommandAPDU command, IResponseAPDU r) throws CardException {
+        if (r.getSW1() != 0x61 && r.getSW1() != 0x6C) {
+            return r;
+        }
+        byte[] request = command.getData();
+        ByteArrayOutputStream data = null;
+        int additionalCommands = 0;
+        while (r.getSW1() == 0x61 || r.getSW1() == 0x6C) {
+            if (++additionalCommands > maxAdditionalCommands) {
+                throw new CardException("Card didn't finish response in " + maxAdditionalCommands + " additional commands.");
+            }
+            if (r.getSW1() == 0x61) {
+                if (data == null) {
+                    data = new ByteArrayOutputStream();
+                }
+                data.write(r.getData(), 0, r.getDataLength());
+                request = createGetResponse(request[0], r.getSW2());
+                getResponses++;
+            } else {
+                byte[] resend = withLe(request, r.getSW2());
+                if (resend == null) {
+                    return r; //Le can't be changed, e.g. extended length command
+                }
+                request = resend;
+                leResends++;
+            }
+            r = targetCardInterface.transmit(targetCardInterface.createCommand(request));
+        }
+        if (data == null || data.size() == 0) {
+            return r;
+        }
+        data.write(r.getData(), 0, r.getDataLength());
+        data.write(r.getSW1());
+        data.write(r.getSW2());
+        return BufferResponseAPDU.wrap(data.toByteArray());
+    }
+
+    /**
+     * GET RESPONSE on the same logical channel as the command, secure messaging and chaining bits are dropped.
+     */
+    static byte[] createGetResponse(byte commandCla, int le) {
+        int cla = commandCla & 0xFF;
+        int channelBits = (cla & 0x40) != 0 ? cla & 0x4F : cla & 0x03;
+        return new byte[]{(byte) channelBits, (byte) 0xC0, 0x00, 0x00, (byte) le};
+    }
+
+    /**
+     * @return short command with Le replaced or appended, null when command has extended length
+     */
+    static byte[] withLe(byte[] request, int le) {
+        if (request.length == 4) { //case 1
+            return new byte[]{request[0], request[1], request[2], request[3], (byte) le};
+        }
+        if (request.length == 5) { //case 2
+            byte[] result = request.clone();
+            result[4] = (byte) le;
+            return result;
+        }
+        int lc = request[4] & 0xFF;
+        if (lc == 0) {
+            return null; //extended length
+        }
+        if (request.length != 5 + lc && request.length != 5 + lc + 1) {
+            return null; //not a valid short command
+        }
+        byte[] result = new byte[5 + lc + 1]; //case 3 gets Le, case 4 has it replaced
+        System.arraycopy(request, 0, result, 0, 5 + lc);
+        result[result.length - 1] = (byte) le;
+        return result;
+    }
+
+    @Override
+    public ICommandAPDU createCommand(byte[] commandData) {
+        return targetCardInterface.createCommand(commandData);
+    }
+
+    @Override
+    public byte[] getATR() {
+        return targetCardInterface.getATR();
+    }
+
+    @Override
+    public boolean isExtendedLengthSupported() {
+        return targetCardInterface.isExtendedLengthSupported();
+    }
+
+    @Override
+    public int openLogicalChannel() throws CardException {
+        return targetCardInterface.openLogicalChannel();
+    }
+
+    @Override
+    public void closeLogicalChannel(int channel) throws CardException {
+        targetCardInterface.closeLogicalChannel(channel);
+    }
+
+    public ICardInterface getTargetCardInterface() {
+        return targetCardInterface;
+    }
+
+    /**
+     * @return number of GET RESPONSE commands sent
+     */
+    public long getGetResponses() {
+        return getResponses;
+    }
+
+    /**
+     * @return number of commands sent again with Le from 6Cxx
+     */
+    public long getLeResends() {
+        return leResends;
+    }
+}
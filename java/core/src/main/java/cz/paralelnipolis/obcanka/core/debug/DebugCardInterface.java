@@ -44,7 +44,20 @@ public class DebugCardInterface implements ICardInterface {
     @Override
     public IResponseAPDU transmit(ICommandAPDU command) throws CardException {
         IResponseAPDU response = targetCardInterface.transmit(command);
+        log(command, response);
+        return response;
+    }
+
+    @Override
+    public List<IResponseAPDU> transmitBatch(List<ICommandAPDU> commands) throws CardException {
+        List<IResponseAPDU> responses = targetCardInterface.transmitBatch(commands);
+        for (int i = 0; i < responses.size(); i++) {
+            log(commands.get(i), responses.get(i));
+        }
+        return responses;
+    }
 
+    private void log(ICommandAPDU command, IResponseAPDU response) {
         if (isLoggingEnabled()) {
             counter++;
             StringBuilder sb = new StringBuilder();
@@ -53,7 +66,6 @@ public class DebugCardInterface implements ICardInterface {
             sb.append("========================================================================================\n");
             appeendToLog(sb.toString());
         }
-        return response;
     }
 
     private void appeendToLog(String logPart) {
@@ -122,6 +134,21 @@ public class DebugCardInterface implements ICardInterface {
         return atr;
     }
 
+    @Override
+    public boolean isExtendedLengthSupported() {
+        return targetCardInterface.isExtendedLengthSupported();
+    }
+
+    @Override
+    public int openLogicalChannel() throws CardException {
+        return targetCardInterface.openLogicalChannel();
+    }
+
+    @Override
+    public void closeLogicalChannel(int channel) throws CardException {
+        targetCardInterface.closeLogicalChannel(channel);
+    }
+
     private CommandDescription processDescription(ICommandAPDU command, IResponseAPDU response) {
         byte[] contains = command.getData();
         CommandDescription cd = new CommandDescription();
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.debug;
+
+import cz.paralelnipolis.obcanka.core.communication.BufferResponseAPDU;
+import cz.paralelnipolis.obcanka.core.communication.CardException;
+import cz.paralelnipolis.obcanka.core.communication.ICardInterface;
+import cz.paralelnipolis.obcanka.core.communication.ICommandAPDU;
+import cz.paralelnipolis.obcanka.core.communication.IResponseAPDU;
+
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decorator which makes the target card interface behave like a slow or unreliable reader: adds latency per APDU
+ * and per transferred byte, answers random commands with error status words, throws CardException and resets
+ * the card or changes its ATR. Everything is drawn from one Random, so the same seed and the same sequence
+ * of commands give the same faults and delays.
+ * <pre>
+ * FaultInjectingCardInterface ci = new FaultInjectingCardInterface(target, 42);
+ * ci.setApduLatency(FaultInjectingCardInterface.withSpikes(FaultInjectingCardInterface.logNormal(2000000, 0.5), 0.01, FaultInjectingCardInterface.fixed(50000000)));
+ * ci.setByteLatency(FaultInjectingCardInterface.fixed(100000));
+ * ci.setExceptionProbability(0.001);
+ * </pre>
+ */
+public class FaultInjectingCardInterface implements ICardInterface {
+    /**
+     * Latency distribution.
+     */
+    public interface Latency {
+        long nextNanos(Random random);
+    }
+
+    public static final Latency NONE = fixed(0);
+
+    private ICardInterface targetCardInterface;
+    private Random random;
+    private Latency apduLatency = NONE;
+    private Latency byteLatency = NONE;
+    private double swErrorProbability;
+    private int[] swErrors = {0x6F00};
+    private double exceptionProbability;
+    private double resetProbability;
+    private double atrChangeProbability;
+    private Runnable resetAction;
+    private boolean atrChanged;
+
+    private long injectedNanos;
+    private int injectedSwErrors;
+    private int injectedExceptions;
+    private int injectedResets;
+    private int injectedAtrChanges;
+
+    public FaultInjectingCardInterface(ICardInterface targetCardInterface, long seed) {
+        this.targetCardInterface = targetCardInterface;
+        this.random = new Random(seed);
+    }
+
+    public static Latency fixed(final long nanos) {
+        return new Latency() {
+            @Override
+            public long nextNanos(Random random) {
+                return nanos;
+            }
+        };
+    }
+
+    public static Latency uniform(final long minNanos, final long maxNanos) {
+        return new Latency() {
+            @Override
+            public long nextNanos(Random random) {
+                return minNanos + (long) (random.nextDouble() * (maxNanos - minNanos));
+            }
+        };
+    }
+
+    /**
+     * Long tailed distribution typical for USB readers, sigma 0.5 gives 99th percentile about 3.2 times the median.
+     */
+    public static Latency logNormal(final long medianNanos, final double sigma) {
+        return new Latency() {
+            @Override
+            public long nextNanos(Random random) {
+                return (long) (medianNanos * Math.exp(sigma * random.nextGaussian()));
+            }
+        };
+    }
+
+    /**
+     * Adds spike latency to the base one with given probability, e.g. USB hiccups or card doing EEPROM writes.
+     */
+    public static Latency withSpikes(final Latency base, final double probability, final Latency spike) {
+        return new Latency() {
+            @Override
+            public long nextNanos(Random random) {
+                long nanos = base.nextNanos(random);
+                if (random.nextDouble() < probability) {
+                    nanos += spike.nextNanos(random);
+                }
+                return nanos;
+            }
+        };
+    }
+
+    /**
+     * Latency added to every APDU round trip.
+     */
+    public void setApduLatency(Latency apduLatency) {
+        this.apduLatency = apduLatency;
+    }
+
+    /**
+     * Latency of one byte, drawn once per APDU and multiplied by length of command and response.
+     */
+    public void setByteLatency(Latency byteLatency) {
+        this.byteLatency = byteLatency;
+    }
+
+    /**
+     * Commands are answered with one of the status words without reaching the target.
+     */
+    public void setSwErrors(double probability, int... swErrors) {
+        if (swErrors.length == 0) {
+            throw new IllegalArgumentException("At least one status word is needed.");
+        }
+        this.swErrorProbability = probability;
+        this.swErrors = swErrors;
+    }
+
+    /**
+     * Transmit fails with CardException without reaching the target.
+     */
+    public void setExceptionProbability(double exceptionProbability) {
+        this.exceptionProbability = exceptionProbability;
+    }
+
+    /**
+     * Card is reset before the command, resetAction makes the target forget its state
+     * (e.g. SimulatedCardInterface.reset()). ATR stays the same.
+     */
+    public void setResetProbability(double resetProbability, Runnable resetAction) {
+        this.resetProbability = resetProbability;
+        this.resetAction = resetAction;
+    }
+
+    /**
+     * Card is reset before the command and reports different ATR from then on, as if it was swapped.
+     * Reset action set by {@link #setResetProbability(double, Runnable)} is run as well.
+     */
+    public void setAtrChangeProbability(double atrChangeProbability) {
+        this.atrChangeProbability = atrChangeProbability;
+    }
+
+    @Override
+    public IResponseAPDU transmit(ICommandAPDU command) throws CardException {
+        long nanos = apduLatency.nextNanos(random);
+        long byteNanos = byteLatency.nextNanos(random);
+        int commandLength = command.getData().length;
+        if (random.nextDouble() < exceptionProbability) {
+            injectedExceptions++;
+            delay(nanos + byteNanos * commandLength);
+            throw new CardException("Injected transmit failure.");
+        }
+        if (random.nextDouble() < swErrorProbability) {
+            injectedSwErrors++;
+            int sw = swErrors[random.nextInt(swErrors.length)];
+            delay(nanos + byteNanos * (commandLength + 2));
+            return BufferResponseAPDU.wrap(new byte[]{(byte) (sw >> 8), (byte) sw});
+        }
+        if (random.nextDouble() < atrChangeProbability) {
+            injectedAtrChanges++;
+            atrChanged = !atrChanged;
+            reset();
+        } else if (random.nextDouble() < resetProbability) {
+            injectedResets++;
+            reset();
+        }
+        IResponseAPDU response = targetCardInterface.transmit(command);
+        delay(nanos + byteNanos * (commandLength + response.getBytes().length));
+        return response;
+    }
+
+    private void reset() {
+        if (resetAction != null) {
+            resetAction.run();
+        }
+    }
+
+    private void delay(long nanos) {
+        if (nanos > 0) {
+            injectedNanos += nanos;
+            LockSupport.parkNanos(nanos);
+        }
+    }
+
+    @Override
+    public ICommandAPDU createCommand(byte[] commandData) {
+        return targetCardInterface.createCommand(commandData);
+    }
+
+    @Override
+    public byte[] getATR() {
+        byte[] atr = targetCardInterface.getATR();
+        if (atrChanged && atr != null && atr.length > 0) {
+            atr = atr.clone();
+            atr[atr.length - 1] ^= 0x01;
+        }
+        return atr;
+    }
+
+    @Override
+    public boolean isExtendedLengthSupported() {
+        return targetCardInterface.isExtendedLengthSupported();
+    }
+
+    @Override
+    public int openLogicalChannel() throws CardException {
+        return targetCardInterface.openLogicalChannel();
+    }
+
+    @Override
+    public void closeLogicalChannel(int channel) throws CardException {
+        targetCardInterface.closeLogicalChannel(channel);
+    }
+
+    /**
+     * @return sum of added latencies
+     */
+    public long getInjectedNanos() {
+        return injectedNanos;
+    }
+
+    public int getInjectedSwErrors() {
+        return injectedSwErrors;
+    }
+
+    public int getInjectedExceptions() {
+        return injectedExceptions;
+    }
+
+    public int getInjectedResets() {
+        return injectedResets;
+    }
+
+    public int getInjectedAtrChanges() {
+        return injectedAtrChanges;
+    }
+
+    @Override
+    public String toString() {
+        return "FaultInjectingCardInterface{" +
+                "injectedNanos=" + injectedNanos +
+                ", injectedSwErrors=" + injectedSwErrors +
+                ", injectedExceptions=" + injectedExceptions +
+                ", injectedResets=" + injectedResets +
+                ", injectedAtrChanges=" + injectedAtrChanges +
+                '}';
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.debug;
+
+import cz.paralelnipolis.obcanka.core.communication.CardException;
+import cz.paralelnipolis.obcanka.core.communication.ICardInterface;
+import cz.paralelnipolis.obcanka.core.communication.ICommandAPDU;
+import cz.paralelnipolis.obcanka.core.communication.IResponseAPDU;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Passes commands to the target card interface and writes every command, response and transmit time
+ * into a binary transcript, which can be served later by {@link ReplayCardInterface}.
+ * <p>
+ * Transcript format: magic "OBTR", version byte, flags byte (bit 0: target supports extended length APDUs), ATR,
+ * then records of command, response and transmit time
+ * in microseconds (unsigned int). Byte arrays are written as length followed by bytes, length takes one byte
+ * below 0xFF, otherwise 0xFF and int. Empty response means transmit failed with CardException.
+ * <p>
+ * Commands built from random data (secure messaging handshake) replay only when the same random is used,
+ * see {@link cz.paralelnipolis.obcanka.core.card.Card#setRandom(java.security.SecureRandom)}.
+ */
+public class RecordingCardInterface implements ICardInterface, Closeable {
+    static final byte[] MAGIC = {'O', 'B', 'T', 'R'};
+    static final int VERSION = 2;
+    static final int FLAG_EXTENDED_LENGTH = 0x01;
+
+    private ICardInterface targetCardInterface;
+    private DataOutputStream out;
+    private int records;
+
+    /**
+     * Writes the header with ATR and extended length support the target reports now, so even a session without
+     * commands gives a valid transcript and replay negotiates READ BINARY size the same way.
+     */
+    public RecordingCardInterface(ICardInterface targetCardInterface, OutputStream out) throws IOException {
+        this.targetCardInterface = targetCardInterface;
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.out.write(MAGIC);
+        this.out.writeByte(VERSION);
+        this.out.writeByte(targetCardInterface.isExtendedLengthSupported() ? FLAG_EXTENDED_LENGTH : 0);
+        writeBytes(this.out, targetCardInterface.getATR());
+    }
+
+    @Override
+    public synchronized IResponseAPDU transmit(ICommandAPDU command) throws CardException {
+        long start = System.nanoTime();
+        try {
+            IResponseAPDU response = targetCardInterface.transmit(command);
+            record(command.getData(), response.getBytes(), System.nanoTime() - start);
+            return response;
+        } catch (CardException e) {
+            record(command.getData(), new byte[0], System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    private void record(byte[] command, byte[] response, long nanos) throws CardException {
+        try {
+            writeBytes(out, command);
+            writeBytes(out, response);
+            out.writeInt((int) Math.min(0xFFFFFFFFL, nanos / 1000));
+            records++;
+        } catch (IOException e) {
+            throw new CardException(e);
+        }
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            bytes = new byte[0];
+        }
+        if (bytes.length < 0xFF) {
+            out.writeByte(bytes.length);
+        } else {
+            out.writeByte(0xFF);
+            out.writeInt(bytes.length);
+        }
+        out.write(bytes);
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readUnsignedByte();
+        if (length == 0xFF) {
+            length = in.readInt();
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    @Override
+    public ICommandAPDU createCommand(byte[] commandData) {
+        return targetCardInterface.createCommand(commandData);
+    }
+
+    @Override
+    public byte[] getATR() {
+        return targetCardInterface.getATR();
+    }
+
+    @Override
+    public boolean isExtendedLengthSupported() {
+        return targetCardInterface.isExtendedLengthSupported();
+    }
+
+    /**
+     * Channel opened by the target is recorded as MANAGE CHANNEL exchange, so replay opens it by the default way.
+     */
+    @Override
+    public synchronized int openLogicalChannel() throws CardException {
+        byte[] command = {0x00, 0x70, 0x00, 0x00, 0x01};
+        long start = System.nanoTime();
+        try {
+            int channel = targetCardInterface.openLogicalChannel();
+            byte[] response;
+            if (channel > 0) {
+                response = new byte[]{(byte) channel, (byte) 0x90, 0x00};
+            } else if (channel == 0) {
+                response = new byte[]{0x6A, (byte) 0x81};
+            } else {
+                response = new byte[]{0x6D, 0x00};
+            }
+            record(command, response, System.nanoTime() - start);
+            return channel;
+        } catch (CardException e) {
+            record(command, new byte[0], System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void closeLogicalChannel(int channel) throws CardException {
+        byte[] command = {0x00, 0x70, (byte) 0x80, (byte) channel};
+        long start = System.nanoTime();
+        try {
+            targetCardInterface.closeLogicalChannel(channel);
+            record(command, new byte[]{(byte) 0x90, 0x00}, System.nanoTime() - start);
+        } catch (CardException e) {
+            record(command, new byte[0], System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of recorded commands
+     */
+    public synchronized int getRecords() {
+        return records;
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
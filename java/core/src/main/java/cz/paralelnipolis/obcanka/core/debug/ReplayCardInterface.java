@@ -0,0 +1,191 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.debug;
+
+import cz.paralelnipolis.obcanka.core.HexUtils;
+import cz.paralelnipolis.obcanka.core.communication.BufferResponseAPDU;
+import cz.paralelnipolis.obcanka.core.communication.CardException;
+import cz.paralelnipolis.obcanka.core.communication.ICardInterface;
+import cz.paralelnipolis.obcanka.core.communication.ICommandAPDU;
+import cz.paralelnipolis.obcanka.core.communication.IResponseAPDU;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Serves responses from a transcript written by {@link RecordingCardInterface}, in the recorded order.
+ * Every command has to match the recorded one, otherwise CardException tells where the session diverged.
+ * With timing emulation every transmit takes as long as it took on the recorded card.
+ */
+public class ReplayCardInterface implements ICardInterface {
+    private static class Exchange {
+        private final byte[] command;
+        private final byte[] response;
+        private final long micros;
+
+        Exchange(byte[] command, byte[] response, long micros) {
+            this.command = command;
+            this.response = response;
+            this.micros = micros;
+        }
+    }
+
+    private final byte[] atr;
+    private final List<Exchange> exchanges;
+    private final boolean extendedLength;
+    private boolean truncated;
+    private int position;
+    private boolean emulateTiming;
+
+    public ReplayCardInterface(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        byte[] magic = new byte[RecordingCardInterface.MAGIC.length];
+        try {
+            data.readFully(magic);
+            if (!Arrays.equals(magic, RecordingCardInterface.MAGIC)) {
+                throw new IOException("Not an APDU transcript.");
+            }
+            int version = data.readUnsignedByte();
+            if (version != RecordingCardInterface.VERSION) {
+                throw new IOException("Unsupported transcript version " + version + ".");
+            }
+            extendedLength = (data.readUnsignedByte() & RecordingCardInterface.FLAG_EXTENDED_LENGTH) != 0;
+            atr = RecordingCardInterface.readBytes(data);
+        } catch (EOFException e) {
+            throw new IOException("Transcript is empty or its header is incomplete.", e);
+        }
+        exchanges = new ArrayList<>();
+        while (true) {
+            data.mark(1);
+            if (data.read() < 0) {
+                break;
+            }
+            data.reset();
+            byte[] command;
+            byte[] response;
+            long micros;
+            try {
+                command = RecordingCardInterface.readBytes(data);
+                response = RecordingCardInterface.readBytes(data);
+                micros = data.readInt() & 0xFFFFFFFFL;
+            } catch (EOFException e) {
+                //recording was not closed properly, e.g. the process was killed, see isTruncated()
+                truncated = true;
+                break;
+            }
+            exchanges.add(new Exchange(command, response, micros));
+        }
+    }
+
+    public static ReplayCardInterface load(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return new ReplayCardInterface(in);
+        }
+    }
+
+    @Override
+    public synchronized IResponseAPDU transmit(ICommandAPDU command) throws CardException {
+        if (position >= exchanges.size()) {
+            throw new CardException("Transcript has no more responses, " + exchanges.size() + " were replayed"
+                    + (truncated ? " and the last record was incomplete." : "."));
+        }
+        Exchange exchange = exchanges.get(position);
+        if (!Arrays.equals(exchange.command, command.getData())) {
+            throw new CardException("Command " + position + " differs from transcript, expected "
+                    + HexUtils.bytesToHexString(exchange.command) + " got " + HexUtils.bytesToHexString(command.getData()));
+        }
+        position++;
+        if (emulateTiming) {
+            LockSupport.parkNanos(exchange.micros * 1000);
+        }
+        if (exchange.response.length == 0) {
+            throw new CardException("Recorded transmit failed.");
+        }
+        return BufferResponseAPDU.wrap(exchange.response);
+    }
+
+    @Override
+    public ICommandAPDU createCommand(final byte[] commandData) {
+        return new ICommandAPDU() {
+            @Override
+            public byte[] getData() {
+                return commandData;
+            }
+        };
+    }
+
+    @Override
+    public byte[] getATR() {
+        return atr;
+    }
+
+    @Override
+    public boolean isExtendedLengthSupported() {
+        return extendedLength;
+    }
+
+    /**
+     * @return true when the transcript ended in the middle of a record, which was left out
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public boolean isEmulateTiming() {
+        return emulateTiming;
+    }
+
+    /**
+     * Makes every transmit take as long as the recorded one.
+     */
+    public void setEmulateTiming(boolean emulateTiming) {
+        this.emulateTiming = emulateTiming;
+    }
+
+    /**
+     * Starts serving the transcript from the beginning.
+     */
+    public synchronized void rewind() {
+        position = 0;
+    }
+
+    /**
+     * @return number of responses not served yet
+     */
+    public synchronized int getRemaining() {
+        return exchanges.size() - position;
+    }
+
+    /**
+     * @return total recorded transmit time in microseconds
+     */
+    public long getRecordedMicros() {
+        long micros = 0;
+        for (Exchange exchange : exchanges) {
+            micros += exchange.micros;
+        }
+        return micros;
+    }
+}
@@ -16,12 +16,14 @@
 package cz.paralelnipolis.obcanka.core.encryption;
 
 import cz.paralelnipolis.obcanka.core.HexUtils;
+import cz.paralelnipolis.obcanka.core.communication.BufferResponseAPDU;
 import cz.paralelnipolis.obcanka.core.communication.CardException;
 import cz.paralelnipolis.obcanka.core.communication.ICardInterface;
 import cz.paralelnipolis.obcanka.core.communication.ICommandAPDU;
 import cz.paralelnipolis.obcanka.core.communication.IResponseAPDU;
 import org.spongycastle.asn1.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.Arrays;
 
@@ -102,46 +104,7 @@ public class EncryptionToken {
         ICommandAPDU wrappedCommand = ci.createCommand(wrapCommand(command));
 
         IResponseAPDU response = ci.transmit(wrappedCommand);
-        return createResponse(unwrapResponse(response));
-    }
-
-    private static IResponseAPDU createResponse(final byte[] receiveBuffer) {
-        int bytesReceived = receiveBuffer.length;
-
-        final byte[] data = new byte[bytesReceived - 2];
-        System.arraycopy(receiveBuffer, 0, data, 0, data.length);
-        final byte[] fullResponse = new byte[bytesReceived];
-        System.arraycopy(receiveBuffer, 0, fullResponse, 0, fullResponse.length);
-        final int sw1 = (receiveBuffer[bytesReceived - 2]) & 0xFF;
-        final int sw2 = receiveBuffer[bytesReceived - 1] & 0xFF;
-        final int sw = sw1 << 8  | sw2;
-
-        return new IResponseAPDU() {
-            @Override
-            public byte[] getBytes() {
-                return fullResponse;
-            }
-
-            @Override
-            public byte[] getData() {
-                return data;
-            }
-
-            @Override
-            public int getSW() {
-                return sw;
-            }
-
-            @Override
-            public int getSW1() {
-                return sw1;
-            }
-
-            @Override
-            public int getSW2() {
-                return sw2;
-            }
-        };
+        return BufferResponseAPDU.wrap(unwrapResponse(response));
     }
 
     private ApduCase detectApduCommandCase(ICommandAPDU command)
@@ -164,8 +127,9 @@ public class EncryptionToken {
 
     private byte[] wrapCommand(ICommandAPDU command) throws CardException {
         ApduCase apduCase = detectApduCommandCase(command);
-        if (apduCase == ApduCase.Unknown)
-            return null;
+        if (apduCase == ApduCase.Unknown) {
+            throw new CardException("Only short APDUs can be wrapped by secure messaging.");
+        }
 
         byte[] commandData = command.getData();
         byte[] commandHeader = Arrays.copyOfRange(commandData,0,4);
@@ -205,18 +169,29 @@ public class EncryptionToken {
         message = HexUtils.concatArrays(message,mac);
         size = size + mac.length;
         byte[] result = HexUtils.concatArrays(message, new byte[1]);
-        result[0] |= 0x0C; //set class
+        result[0] = secureClass(result[0]);
         result[4] = size < 256 ? (byte) size : 0; //set length
         return result;
     }
 
+    /**
+     * Sets secure messaging indication of CLA. First interindustry class (channels 0-3) has it in bits 0x0C,
+     * further interindustry class (0x40, channels 4-19) has it in bit 0x20 and the low bits hold the channel.
+     */
+    static byte secureClass(byte cla) {
+        if ((cla & 0x40) == 0) {
+            return (byte) (cla | 0x0C);
+        }
+        return (byte) (cla | 0x20);
+    }
+
     private byte[] encryptCommand(byte[] header, byte[] data) {
         byte[] result = null;
         if (data != null && data.length != 0)
         {
             byte[] counterWithData = HexUtils.concatArrays(counter, data);
             byte[] encryptedCounterWithData = EncryptionUtils.encryptWithAESCBCNone(skEnc, EncryptionUtils.padDataWithISO7816_4(counterWithData));
-            byte[] encryptedDataWithout16bytes = Arrays.copyOfRange(encryptedCounterWithData,16,encryptedCounterWithData.length - 1);
+            byte[] encryptedDataWithout16bytes = Arrays.copyOfRange(encryptedCounterWithData,16,encryptedCounterWithData.length);
             boolean flag = header[1] % 2 != 0;
             if (!flag) {
                 encryptedDataWithout16bytes = HexUtils.concatArrays(new byte[]{1}, encryptedDataWithout16bytes);
@@ -256,20 +231,30 @@ public class EncryptionToken {
         if (responseBytes.length == 2) {
             numArray = responseBytes;
         } else {
-            incrementCounter(counter);
+            counter = incrementCounter(counter);
 
             try {
                 ASN1EncodableVector asn1Objects = responseToASN1(responseBytes);
-                ASN1Object macOBj = getAsn1Object(asn1Objects, 0x8e);
-                ASN1Object swObj = getAsn1Object(asn1Objects, 0x99); //SW result
-                ASN1Object encryptedDataA = getAsn1Object(asn1Objects, 0x85);
-                ASN1Object encryptedDataB = getAsn1Object(asn1Objects, 0x87);
+                //tag numbers of context specific objects 8E, 99, 85 and 87
+                ASN1Object macOBj = getAsn1Object(asn1Objects, 0x0e);
+                ASN1Object swObj = getAsn1Object(asn1Objects, 0x19); //SW result
+                ASN1Object encryptedDataA = getAsn1Object(asn1Objects, 0x05);
+                ASN1Object encryptedDataB = getAsn1Object(asn1Objects, 0x07);
+                if (macOBj == null || swObj == null) {
+                    throw new CardException("Response is not secured.");
+                }
+                byte[] encryptedData = null;
+                if (encryptedDataA != null) {
+                    encryptedData = encryptedDataA.getEncoded();
+                } else if (encryptedDataB != null) {
+                    encryptedData = encryptedDataB.getEncoded();
+                }
                 byte[] mac = ((ASN1OctetString) ((ASN1TaggedObject) macOBj).getObject()).getOctets();
-                if (!verifyMAC(swObj.getEncoded(), encryptedDataA != null ? encryptedDataA.getEncoded() : encryptedDataB.getEncoded(), mac)) {
+                if (!verifyMAC(swObj.getEncoded(), encryptedData, mac)) {
                     throw new CardException("MAC doesn't match");
                 }
                 numArray = ((ASN1OctetString) ((ASN1TaggedObject) swObj).getObject()).getOctets();
-                if (!Arrays.equals(numArray, Arrays.copyOfRange(responseBytes, responseBytes.length - 2, responseBytes.length))) {
+                if (numArray.length != 2 || HexUtils.byteToInt(numArray[0]) != response.getSW1() || HexUtils.byteToInt(numArray[1]) != response.getSW2()) {
                     throw new CardException("SW does not match.");
                 }
                 byte[] encData = null;
@@ -283,8 +268,9 @@ public class EncryptionToken {
                 if (encData != null) {
                     numArray = HexUtils.concatArrays(decryptData(encData), numArray);
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+            } catch (IOException | ClassCastException | IllegalArgumentException | IllegalStateException e) {
+                //malformed data objects, the session manager starts a new session on CardException
+                throw new CardException(e);
             }
         }
         return numArray;
@@ -314,15 +300,18 @@ public class EncryptionToken {
         return Arrays.equals(testMAC,calculatedMAC);
     }
 
-    private byte[] decryptData(byte[] encData) {
-         return EncryptionUtils.decryptWithAESCBCNone(skEnc, HexUtils.concatArrays(EncryptionUtils.encryptWithAESCBCNone(skEnc, counter),encData));
-         //TODO: Remove padding
-          //.ToArray<byte>())).Skip<byte>(16).ToArray<byte>()).Reverse<byte>().SkipWhile<byte>(AesSecureMessaging.\u003C\u003Ec.\u003C\u003E9__16_0 ?? (AesSecureMessaging.\u003C\u003Ec.\u003C\u003E9__16_0 = new Func<byte, bool>((object) AesSecureMessaging.\u003C\u003Ec.\u003C\u003E9, __methodptr(\u003CDecryptData\u003Eb__16_0)))).Skip<byte>(1).Reverse<byte>().ToArray<byte>();
+    private byte[] decryptData(byte[] encData) throws CardException {
+        //encrypted counter is the IV, its block is skipped after decryption
+        byte[] decrypted = EncryptionUtils.decryptWithAESCBCNone(skEnc, HexUtils.concatArrays(EncryptionUtils.encryptWithAESCBCNone(skEnc, counter),encData));
+        if (decrypted == null) {
+            throw new CardException("Secured response can't be decrypted.");
+        }
+        return EncryptionUtils.unpadDataWithISO7816_4(Arrays.copyOfRange(decrypted, 16, decrypted.length));
     }
 
     private static ASN1EncodableVector responseToASN1(byte[] buffer) throws IOException {
         ASN1EncodableVector result = new ASN1EncodableVector();
-        ASN1InputStream asn1Is = new ASN1InputStream(Arrays.copyOfRange(buffer, 0, buffer.length - 2), false);
+        ASN1InputStream asn1Is = new ASN1InputStream(new ByteArrayInputStream(buffer, 0, buffer.length - 2), buffer.length - 2, false);
         ASN1Object asnObj;
         while ((asnObj = asn1Is.readObject()) != null) {
             result.add(asnObj);
@@ -28,7 +28,6 @@ import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import java.math.BigInteger;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
@@ -36,7 +35,6 @@ import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
 
 public class EncryptionUtils {
 
@@ -61,7 +59,7 @@ public class EncryptionUtils {
             };
 
 
-    private static Map<byte[],byte[]> keysByKeyChecksumValue = new HashMap<>();
+    private static Map<String,byte[]> keysByKeyChecksumValue = new HashMap<>();
     static {
         addKey(new byte[]
                         {
@@ -212,17 +210,12 @@ public class EncryptionUtils {
     }
 
     private static void addKey(byte[] key) {
-        keysByKeyChecksumValue.put(calculateKeyChecksumValue(key),key);
+        keysByKeyChecksumValue.put(HexUtils.bytesToHexString(calculateKeyChecksumValue(key)),key);
     }
 
     public static byte[] getKeyByKeyChecksumValue(byte[] keyChecksumValue) {
         if (keyChecksumValue != null) {
-            Set<Map.Entry<byte[], byte[]>> entries = keysByKeyChecksumValue.entrySet();
-            for (Map.Entry<byte[], byte[]> entry : entries) {
-                if (Arrays.equals(entry.getKey(), keyChecksumValue)) {
-                    return entry.getValue();
-                }
-            }
+            return keysByKeyChecksumValue.get(HexUtils.bytesToHexString(keyChecksumValue));
         }
         return null;
     }
@@ -297,21 +290,38 @@ public class EncryptionUtils {
         return null;
     }
 
+    /**
+     * @return copy of the counter increased by one as unsigned big endian number, overflow wraps to zero
+     */
     public static byte[] incrementCounter(byte[] counter) {
-        BigInteger b = new BigInteger(counter);
-        byte[] r = b.add(BigInteger.ONE).toByteArray();
-        if (r.length > counter.length) {
-            r = new byte[]{0};
+        byte[] r = counter.clone();
+        for (int i = r.length - 1; i >= 0; i--) {
+            r[i]++;
+            if (r[i] != 0) {
+                break;
+            }
         }
-        byte[] padding = new byte[counter.length-r.length];
-        return HexUtils.concatArrays(padding,r);
-
+        return r;
     }
 
     public static byte[] padDataWithISO7816_4(byte[] data) {
         return HexUtils.concatArrays(data, Arrays.copyOf(PADDING_ISO7816_4, PADDING_ISO7816_4.length - (data.length % 16)));
     }
 
+    /**
+     * Removes trailing zeros and the 0x80 byte. Data without the padding are returned unchanged.
+     */
+    public static byte[] unpadDataWithISO7816_4(byte[] data) {
+        int i = data.length - 1;
+        while (i >= 0 && data[i] == 0) {
+            i--;
+        }
+        if (i < 0 || data[i] != (byte) 0x80) {
+            return data;
+        }
+        return Arrays.copyOf(data, i);
+    }
+
 
 
 }
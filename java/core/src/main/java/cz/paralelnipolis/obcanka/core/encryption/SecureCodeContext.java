@@ -0,0 +1,82 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.encryption;
+
+import cz.paralelnipolis.obcanka.core.HexUtils;
+
+import java.util.Arrays;
+
+/**
+ * Card specific SakC derived from master key identified by key checksum value. Card number, serial number and KCV
+ * don't change during card session, so the derivation is done once and only key counter is needed for each
+ * PIN change or unblock.
+ */
+public class SecureCodeContext {
+    private final byte[] cardNumber;
+    private final byte[] serialNumber;
+    private final byte[] keyChecksumValue;
+    private final SakC sakC;
+
+    private SecureCodeContext(byte[] cardNumber, byte[] serialNumber, byte[] keyChecksumValue, SakC sakC) {
+        this.cardNumber = cardNumber;
+        this.serialNumber = serialNumber;
+        this.keyChecksumValue = keyChecksumValue;
+        this.sakC = sakC;
+    }
+
+    /**
+     * @return context or null when master key with given key checksum value is not known
+     */
+    public static SecureCodeContext create(byte[] cardNumber, byte[] serialNumber, byte[] keyChecksumValue) {
+        if (cardNumber == null || serialNumber == null) {
+            return null;
+        }
+        byte[] encKey = EncryptionUtils.getKeyByKeyChecksumValue(keyChecksumValue);
+        if (encKey == null) {
+            return null;
+        }
+        SakC sakC = new MasterSakC(encKey).deriveEncryptionKey(serialNumber, cardNumber);
+        if (sakC == null) {
+            return null;
+        }
+        return new SecureCodeContext(cardNumber.clone(), serialNumber.clone(), keyChecksumValue.clone(), sakC);
+    }
+
+    /**
+     * Encrypts data of plain APDU and returns APDU with CLA 0x8C.
+     */
+    public byte[] encryptAPDU(byte[] keyCounter, byte[] apduRequest) {
+        byte[] commandHeader = Arrays.copyOf(apduRequest, 5);
+        byte[] payload = Arrays.copyOfRange(apduRequest, 5, apduRequest.length);
+        byte[] encryptedPayload = sakC.encryptSecureCodeData(keyCounter, payload);
+
+        commandHeader[0] = (byte) 0x8C;
+        commandHeader[4] = (byte) encryptedPayload.length;
+        return HexUtils.concatArrays(commandHeader, encryptedPayload);
+    }
+
+    public byte[] getCardNumber() {
+        return cardNumber.clone();
+    }
+
+    public byte[] getSerialNumber() {
+        return serialNumber.clone();
+    }
+
+    public byte[] getKeyChecksumValue() {
+        return keyChecksumValue.clone();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.encryption;
+
+import cz.paralelnipolis.obcanka.core.card.SecureSessionManager;
+import cz.paralelnipolis.obcanka.core.communication.CardException;
+import cz.paralelnipolis.obcanka.core.communication.ICardInterface;
+import cz.paralelnipolis.obcanka.core.communication.ICommandAPDU;
+import cz.paralelnipolis.obcanka.core.communication.IResponseAPDU;
+
+/**
+ * Sends every command to the target card interface wrapped by secure messaging. Session is established on first
+ * command and kept by {@link SecureSessionManager}, so Card, ScriptExecutor or DebugCardInterface can be put on top
+ * of this interface without any change.
+ */
+public class SecureMessagingCardInterface implements ICardInterface {
+    private ICardInterface targetCardInterface;
+    private SecureSessionManager sessionManager;
+
+    public SecureMessagingCardInterface(ICardInterface targetCardInterface) {
+        this.targetCardInterface = targetCardInterface;
+        this.sessionManager = new SecureSessionManager(targetCardInterface);
+    }
+
+    @Override
+    public IResponseAPDU transmit(ICommandAPDU command) throws CardException {
+        return sessionManager.transmit(command);
+    }
+
+    @Override
+    public ICommandAPDU createCommand(byte[] commandData) {
+        return targetCardInterface.createCommand(commandData);
+    }
+
+    @Override
+    public byte[] getATR() {
+        return targetCardInterface.getATR();
+    }
+
+    @Override
+    public boolean isExtendedLengthSupported() {
+        return false; //secured commands are always built as short APDUs
+    }
+
+    @Override
+    public int openLogicalChannel() throws CardException {
+        return targetCardInterface.openLogicalChannel(); //MANAGE CHANNEL is sent plain
+    }
+
+    @Override
+    public void closeLogicalChannel(int channel) throws CardException {
+        targetCardInterface.closeLogicalChannel(channel);
+    }
+
+    public SecureSessionManager getSessionManager() {
+        return sessionManager;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Round-trip latency, transferred bytes and status words of one instruction (INS byte).
+ * All counters are updated without locking.
+ */
+public class InstructionMetrics {
+    private final int ins;
+    private final String name;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final ConcurrentMap<Integer, AtomicLong> statusWords = new ConcurrentHashMap<>();
+
+    InstructionMetrics(int ins) {
+        this.ins = ins;
+        this.name = getInstructionName(ins);
+    }
+
+    void record(long micros, int sent, int received, int sw) {
+        latency.record(micros);
+        bytesSent.addAndGet(sent);
+        bytesReceived.addAndGet(received);
+        AtomicLong swCount = statusWords.get(sw);
+        if (swCount == null) {
+            AtomicLong created = new AtomicLong();
+            swCount = statusWords.putIfAbsent(sw, created);
+            if (swCount == null) {
+                swCount = created;
+            }
+        }
+        swCount.incrementAndGet();
+    }
+
+    /**
+     * Records transmit which failed with CardException.
+     */
+    void recordError(long micros, int sent) {
+        latency.record(micros);
+        bytesSent.addAndGet(sent);
+        errors.incrementAndGet();
+    }
+
+    public int getIns() {
+        return ins;
+    }
+
+    /**
+     * @return e.g. "SELECT", or "INS 0x12" for instructions without known name
+     */
+    public String getName() {
+        return name;
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return number of transmits which failed with CardException
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * @return count of responses by status word in hex, e.g. "9000"
+     */
+    public Map<String, Long> getStatusWords() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<Integer, AtomicLong> entry : statusWords.entrySet()) {
+            result.put(String.format("%04X", entry.getKey()), entry.getValue().get());
+        }
+        return result;
+    }
+
+    public static String getInstructionName(int ins) {
+        switch (ins) {
+            case 0x0E: return "ERASE BINARY";
+            case 0x20: return "VERIFY";
+            case 0x22: return "MANAGE SECURITY ENVIRONMENT";
+            case 0x24: return "CHANGE REFERENCE DATA";
+            case 0x2A: return "PERFORM SECURITY OPERATION";
+            case 0x2C: return "RESET RETRY COUNTER";
+            case 0x70: return "MANAGE CHANNEL";
+            case 0x82: return "EXTERNAL AUTHENTICATE";
+            case 0x84: return "GET CHALLENGE";
+            case 0x86: return "GENERAL AUTHENTICATE";
+            case 0x88: return "INTERNAL AUTHENTICATE";
+            case 0xA4: return "SELECT";
+            case 0xB0: return "READ BINARY";
+            case 0xB2: return "READ RECORD";
+            case 0xC0: return "GET RESPONSE";
+            case 0xC2: return "ENVELOPE";
+            case 0xCA: return "GET DATA";
+            case 0xD0: return "WRITE BINARY";
+            case 0xD6: return "UPDATE BINARY";
+            case 0xDA: return "PUT DATA";
+            default: return String.format("INS 0x%02X", ins);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-28s count %8d, errors %4d, mean %9.1f us, p50 %7d us, p99 %7d us, max %7d us, sent %9d B, received %9d B, SW %s",
+                name, latency.getCount(), errors.get(), latency.getMeanMicros(), latency.getPercentileMicros(50),
+                latency.getPercentileMicros(99), latency.getMaxMicros(), bytesSent.get(), bytesReceived.get(), getStatusWords());
+    }
+}
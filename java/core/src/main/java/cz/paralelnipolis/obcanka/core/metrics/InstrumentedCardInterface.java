@@ -0,0 +1,196 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.metrics;
+
+import cz.paralelnipolis.obcanka.core.communication.CardException;
+import cz.paralelnipolis.obcanka.core.communication.ICardInterface;
+import cz.paralelnipolis.obcanka.core.communication.ICommandAPDU;
+import cz.paralelnipolis.obcanka.core.communication.IResponseAPDU;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records round-trip latency, bytes sent and received and status words per instruction (INS byte) of every APDU
+ * passed to the target card interface. Transmit path only reads clock twice and updates atomic counters.
+ * <p>
+ * To see APDUs as they go to the reader, wrap the lowest card interface, e.g. DesktopCardInterface, before
+ * it is passed to Card. Commands of a batch are recorded with the batch time split equally among them.
+ */
+public class InstrumentedCardInterface implements ICardInterface {
+    private static final int MANAGE_CHANNEL = 0x70;
+
+    private ICardInterface targetCardInterface;
+    private final String name;
+    private final AtomicReferenceArray<InstructionMetrics> metrics = new AtomicReferenceArray<>(256);
+    private final List<MetricsExporter> exporters = new CopyOnWriteArrayList<>();
+
+    public InstrumentedCardInterface(ICardInterface targetCardInterface, String name) {
+        this.targetCardInterface = targetCardInterface;
+        this.name = name;
+    }
+
+    @Override
+    public IResponseAPDU transmit(ICommandAPDU command) throws CardException {
+        long start = System.nanoTime();
+        try {
+            IResponseAPDU response = targetCardInterface.transmit(command);
+            record(command, response, (System.nanoTime() - start) / 1000);
+            return response;
+        } catch (CardException e) {
+            metricsFor(getIns(command)).recordError((System.nanoTime() - start) / 1000, command.getData().length);
+            throw e;
+        }
+    }
+
+    @Override
+    public List<IResponseAPDU> transmitBatch(List<ICommandAPDU> commands) throws CardException {
+        if (commands.isEmpty()) {
+            return targetCardInterface.transmitBatch(commands);
+        }
+        long start = System.nanoTime();
+        try {
+            List<IResponseAPDU> responses = targetCardInterface.transmitBatch(commands);
+            long micros = (System.nanoTime() - start) / 1000 / commands.size();
+            for (int i = 0; i < commands.size(); i++) {
+                record(commands.get(i), responses.get(i), micros);
+            }
+            return responses;
+        } catch (CardException e) {
+            long micros = (System.nanoTime() - start) / 1000 / commands.size();
+            for (ICommandAPDU command : commands) {
+                metricsFor(getIns(command)).recordError(micros, command.getData().length);
+            }
+            throw e;
+        }
+    }
+
+    private void record(ICommandAPDU command, IResponseAPDU response, long micros) {
+        metricsFor(getIns(command)).record(micros, command.getData().length, response.getDataLength() + 2, response.getSW());
+    }
+
+    private static int getIns(ICommandAPDU command) {
+        byte[] data = command.getData();
+        return data.length > 1 ? data[1] & 0xFF : 0;
+    }
+
+    private InstructionMetrics metricsFor(int ins) {
+        InstructionMetrics result = metrics.get(ins);
+        if (result == null) {
+            InstructionMetrics created = new InstructionMetrics(ins);
+            if (metrics.compareAndSet(ins, null, created)) {
+                for (MetricsExporter exporter : exporters) {
+                    exporter.instructionAdded(this, created);
+                }
+                return created;
+            }
+            result = metrics.get(ins);
+        }
+        return result;
+    }
+
+    /**
+     * Adds exporter and tells it about instructions recorded so far.
+     */
+    public void addExporter(MetricsExporter exporter) {
+        exporters.add(exporter);
+        for (InstructionMetrics instructionMetrics : getMetrics()) {
+            exporter.instructionAdded(this, instructionMetrics);
+        }
+    }
+
+    public void removeExporter(MetricsExporter exporter) {
+        exporters.remove(exporter);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return metrics of instructions transmitted so far ordered by INS
+     */
+    public List<InstructionMetrics> getMetrics() {
+        List<InstructionMetrics> result = new ArrayList<>();
+        for (int ins = 0; ins < metrics.length(); ins++) {
+            InstructionMetrics instructionMetrics = metrics.get(ins);
+            if (instructionMetrics != null) {
+                result.add(instructionMetrics);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return metrics of the instruction or null when it wasn't transmitted yet
+     */
+    public InstructionMetrics getMetrics(int ins) {
+        return metrics.get(ins & 0xFF);
+    }
+
+    @Override
+    public ICommandAPDU createCommand(byte[] commandData) {
+        return targetCardInterface.createCommand(commandData);
+    }
+
+    @Override
+    public byte[] getATR() {
+        return targetCardInterface.getATR();
+    }
+
+    @Override
+    public boolean isExtendedLengthSupported() {
+        return targetCardInterface.isExtendedLengthSupported();
+    }
+
+    @Override
+    public int openLogicalChannel() throws CardException {
+        long start = System.nanoTime();
+        try {
+            int channel = targetCardInterface.openLogicalChannel();
+            //recorded as MANAGE CHANNEL open answered by channel number, 6A81 or error
+            int sw = channel > 0 ? 0x9000 : channel == 0 ? 0x6A81 : 0x6D00;
+            metricsFor(MANAGE_CHANNEL).record((System.nanoTime() - start) / 1000, 5, channel > 0 ? 3 : 2, sw);
+            return channel;
+        } catch (CardException e) {
+            metricsFor(MANAGE_CHANNEL).recordError((System.nanoTime() - start) / 1000, 5);
+            throw e;
+        }
+    }
+
+    @Override
+    public void closeLogicalChannel(int channel) throws CardException {
+        long start = System.nanoTime();
+        try {
+            targetCardInterface.closeLogicalChannel(channel);
+            metricsFor(MANAGE_CHANNEL).record((System.nanoTime() - start) / 1000, 4, 2, 0x9000);
+        } catch (CardException e) {
+            metricsFor(MANAGE_CHANNEL).recordError((System.nanoTime() - start) / 1000, 4);
+            throw e;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(name);
+        for (InstructionMetrics instructionMetrics : getMetrics()) {
+            sb.append("\n  ").append(instructionMetrics);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.metrics;
+
+/**
+ * Publishes metrics of {@link InstrumentedCardInterface}. Metrics are live objects, so exporters only register them
+ * and read current values whenever they need them.
+ */
+public interface MetricsExporter {
+    /**
+     * Called for every instruction, when it is transmitted for the first time or when the exporter is added.
+     * It may come twice for the same instruction when the exporter is added concurrently with transmit.
+     */
+    void instructionAdded(InstrumentedCardInterface source, InstructionMetrics metrics);
+}
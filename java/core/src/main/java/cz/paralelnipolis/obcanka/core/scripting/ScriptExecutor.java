@@ -15,7 +15,11 @@
  */
 package cz.paralelnipolis.obcanka.core.scripting;
 
+import cz.paralelnipolis.obcanka.core.communication.CardException;
 import cz.paralelnipolis.obcanka.core.communication.ICardInterface;
+import cz.paralelnipolis.obcanka.core.communication.ICommandAPDU;
+import cz.paralelnipolis.obcanka.core.communication.ProtocolCardInterface;
+import cz.paralelnipolis.obcanka.core.scripting.cmd.CmdAPDU;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -23,8 +27,11 @@ import java.util.List;
 public class ScriptExecutor {
     private ICardInterface cardInterface;
 
+    /**
+     * Script commands see final responses only, 61xx and 6Cxx are resolved by {@link ProtocolCardInterface}.
+     */
     public ScriptExecutor(ICardInterface cardInterface) {
-        this.cardInterface = cardInterface;
+        this.cardInterface = ProtocolCardInterface.wrap(cardInterface);
     }
 
     public ICardInterface getCardInterface() {
@@ -39,8 +46,21 @@ public class ScriptExecutor {
 
         if (commands.size() > 0) {
             int cmdIndex = 0;
+            int sequentialUntil = 0;
 
             do {
+                int independentCommands = cmdIndex >= sequentialUntil ? countIndependentCommands(commands, cmdIndex) : 0;
+                if (independentCommands > 1) {
+                    try {
+                        transmitBatch(commands.subList(cmdIndex, cmdIndex + independentCommands));
+                        cmdIndex += independentCommands;
+                        continue;
+                    } catch (CardException e) {
+                        //commands of the failed batch are executed one by one, the same way as without batching
+                        e.printStackTrace();
+                        sequentialUntil = cmdIndex + independentCommands;
+                    }
+                }
                 ICommand cmd = commands.get(cmdIndex);
                 cmd.setEntryProvider(ep);
                 CommandResult result = cmd.execute(this);
@@ -64,6 +84,29 @@ public class ScriptExecutor {
         return ScriptResponse.build(env.getAlgorithm(),env.getKeyId(),returnCode,blocks);
     }
 
+    private static int countIndependentCommands(List<ICommand> commands, int fromIndex) {
+        int count = 0;
+        while (fromIndex + count < commands.size()) {
+            ICommand command = commands.get(fromIndex + count);
+            if (!(command instanceof CmdAPDU) || !((CmdAPDU) command).isIndependent()) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Sends APDU commands whose responses are not checked nor stored in one batch.
+     */
+    private void transmitBatch(List<ICommand> commands) throws CardException {
+        List<ICommandAPDU> apdus = new ArrayList<>(commands.size());
+        for (ICommand command : commands) {
+            apdus.add(cardInterface.createCommand(((CmdAPDU) command).getRequest()));
+        }
+        cardInterface.transmitBatch(apdus);
+    }
+
     private static int findCommandIndexByLabel(List<ICommand> commands, Label label, int currentCmdIndex) {
         //try first searching from currentCmdIndex+1 further as there can be multiple commands with same label
         for (int i = currentCmdIndex+1; i < commands.size(); i++) {
@@ -81,6 +81,19 @@ public class CmdAPDU extends AbstractCommand {
         return null;
     }
 
+    public byte[] getRequest() {
+        return request;
+    }
+
+    /**
+     * @return true when the command neither branches nor stores its response, so it can be sent
+     * together with its neighbours without looking at the response. Command without response list
+     * stores its response, see {@link #execute(ScriptExecutor)}.
+     */
+    public boolean isIndependent() {
+        return responses != null && responses.isEmpty() && errorLabel == null && errorFlags == 0;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
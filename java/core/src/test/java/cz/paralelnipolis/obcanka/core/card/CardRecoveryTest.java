@@ -0,0 +1,127 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.card;
+
+import cz.paralelnipolis.obcanka.core.communication.ScriptedCardInterface;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Card answering 6986 (command not allowed, no current EF) behaves as if it was reset. Card re-selects application
+ * and file and repeats only plain reads.
+ */
+public class CardRecoveryTest {
+    private static final String ATR = "3B 00";
+    private static final String SELECT_FILE_MANAGEMENT = "00 A4 04 0C 0A D2 03 10 01 00 01 03 02 01 00";
+    private static final String SELECT_CARD_MANAGEMENT = "00 A4 04 0C 09 D2 03 10 01 00 01 00 02 02";
+    private static final String SELECT_IDENTIFICATION = "00 A4 08 00 02 00 01";
+    private static final String FCP_512 = "62 04 80 02 02 00";
+    private static final String LOST_STATE = "69 86";
+    private static final String OK = "90 00";
+
+    @Test
+    public void readBinaryIsRepeatedAfterReset() throws Exception {
+        String firstChunk = chunk(1);
+        String secondChunk = chunk(2);
+        ScriptedCardInterface ci = new ScriptedCardInterface(ATR)
+                .expect(SELECT_FILE_MANAGEMENT, OK)
+                .expect(SELECT_IDENTIFICATION, FCP_512 + OK)
+                .expect("00 B0 00 00 00", firstChunk + OK)
+                .expect("00 B0 01 00 00", LOST_STATE) //card was reset between chunks
+                .expect(SELECT_FILE_MANAGEMENT, OK)
+                .expect(SELECT_IDENTIFICATION, FCP_512 + OK)
+                .expect("00 B0 01 00 00", secondChunk + OK);
+        Card card = createCard(ci);
+
+        assertEquals(true, card.selectApplication(fileManagement()));
+        byte[] content = card.readFile(0x0001);
+
+        ci.assertAllSent();
+        assertEquals(512, content.length);
+        assertArrayEquals(hex(firstChunk + secondChunk), content);
+        assertEquals(1, card.getSession().getRecoveries());
+    }
+
+    @Test
+    public void selectIsNotRepeatedAfterReset() throws Exception {
+        ScriptedCardInterface ci = new ScriptedCardInterface(ATR)
+                .expect(SELECT_FILE_MANAGEMENT, OK)
+                .expect(SELECT_IDENTIFICATION, LOST_STATE);
+        Card card = createCard(ci);
+
+        assertEquals(true, card.selectApplication(fileManagement()));
+        assertNull(card.readFile(0x0001));
+
+        ci.assertAllSent();
+        assertEquals(0, card.getSession().getRecoveries());
+    }
+
+    @Test
+    public void restOfBatchIsSentAgainAfterReset() throws Exception {
+        ScriptedCardInterface ci = new ScriptedCardInterface(ATR)
+                .expect(SELECT_CARD_MANAGEMENT, OK)
+                .expect("80 CA 01 01 00", "31 32 33" + OK)
+                .expect("80 CA 01 02 00", LOST_STATE) //card was reset while the batch was sent
+                .expect("80 CA 01 8B 01", LOST_STATE)
+                .expect("80 CA 01 8C 01", LOST_STATE)
+                .expect("80 CA 01 8D 01", LOST_STATE)
+                .expect("80 CA 01 82 01", LOST_STATE)
+                .expect("80 CA 01 83 01", LOST_STATE)
+                .expect("80 CA 01 84 01", LOST_STATE)
+                .expect(SELECT_CARD_MANAGEMENT, OK)
+                .expect("80 CA 01 02 00", "AA BB" + OK)
+                .expect("80 CA 01 8B 01", "01" + OK)
+                .expect("80 CA 01 8C 01", "03" + OK)
+                .expect("80 CA 01 8D 01", "03" + OK)
+                .expect("80 CA 01 82 01", "01" + OK)
+                .expect("80 CA 01 83 01", "02" + OK)
+                .expect("80 CA 01 84 01", "03" + OK);
+        Card card = createCard(ci);
+
+        CardSnapshot snapshot = card.readSnapshot();
+
+        ci.assertAllSent();
+        assertEquals("123", snapshot.getCardNumber());
+        assertArrayEquals(hex("AA BB"), snapshot.getSerialNumber());
+        assertEquals(2, snapshot.getIokTryLimit());
+        assertEquals(1, card.getSession().getRecoveries());
+    }
+
+    private static Card createCard(ScriptedCardInterface ci) {
+        Card card = new Card(ci, new LeCache());
+        card.setProfileRegistry(new CardProfileRegistry());
+        return card;
+    }
+
+    private static byte[] fileManagement() {
+        return hex(SELECT_FILE_MANAGEMENT.substring(15));
+    }
+
+    private static String chunk(int value) {
+        char[] hex = new char[256 * 2];
+        Arrays.fill(hex, Character.forDigit(value, 16));
+        return new String(hex);
+    }
+
+    private static byte[] hex(String s) {
+        return cz.paralelnipolis.obcanka.core.HexUtils.hexStringToByteArray(s);
+    }
+}
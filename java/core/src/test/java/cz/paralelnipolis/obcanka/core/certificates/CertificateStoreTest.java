@@ -0,0 +1,152 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.certificates;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class CertificateStoreTest {
+    private static final byte[] SERIAL_NUMBER = {0x01, 0x02, 0x03, 0x04};
+    private static final int MAX_SIZE = 4096;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("certificates", ".obcs");
+        Files.delete(file.toPath());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file.toPath());
+        Files.deleteIfExists(new File(file.getPath() + ".tmp").toPath());
+    }
+
+    @Test
+    public void truncatedRecordIsDroppedOnOpen() throws IOException {
+        int secondRecord = writeTwoRecords();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(secondRecord + 10); //crash in the middle of second record
+        }
+
+        CertificateStore store = new CertificateStore(file, MAX_SIZE);
+        assertArrayEquals(data(1, 100), store.get(SERIAL_NUMBER, Certificate.CertificateType.AUTHORIZATION));
+        assertNull(store.get(SERIAL_NUMBER, Certificate.CertificateType.IDENTIFICATION));
+        assertEquals(secondRecord, store.getUsedBytes());
+
+        //store continues right after the last complete record
+        store.put(SERIAL_NUMBER, Certificate.CertificateType.IDENTIFICATION, data(3, 50));
+        store.close();
+        store = new CertificateStore(file, MAX_SIZE);
+        assertArrayEquals(data(3, 50), store.get(SERIAL_NUMBER, Certificate.CertificateType.IDENTIFICATION));
+        store.close();
+    }
+
+    @Test
+    public void recordWithWrongCrcIsDroppedOnOpen() throws IOException {
+        int secondRecord = writeTwoRecords();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(secondRecord + 40);
+            int b = raf.read();
+            raf.seek(secondRecord + 40);
+            raf.write(b ^ 0xFF);
+        }
+
+        CertificateStore store = new CertificateStore(file, MAX_SIZE);
+        assertEquals(1, store.size());
+        assertArrayEquals(data(1, 100), store.get(SERIAL_NUMBER, Certificate.CertificateType.AUTHORIZATION));
+        assertNull(store.get(SERIAL_NUMBER, Certificate.CertificateType.IDENTIFICATION));
+        store.close();
+    }
+
+    @Test
+    public void storeIsReopenedWhenCompactedFileCantReplaceIt() throws IOException {
+        CertificateStore store = new CertificateStore(file, MAX_SIZE) {
+            @Override
+            void replace(File compacted, File target) throws IOException {
+                throw new IOException("File is in use.");
+            }
+        };
+        store.put(SERIAL_NUMBER, Certificate.CertificateType.AUTHORIZATION, data(1, 100));
+        store.put(SERIAL_NUMBER, Certificate.CertificateType.AUTHORIZATION, data(2, 100));
+        int usedBytes = store.getUsedBytes();
+        try {
+            store.compact();
+            fail("Compaction should fail.");
+        } catch (IOException e) {
+            assertEquals("File is in use.", e.getMessage());
+        }
+
+        //old file is used again and stays writable
+        assertEquals(usedBytes, store.getUsedBytes());
+        assertArrayEquals(data(2, 100), store.get(SERIAL_NUMBER, Certificate.CertificateType.AUTHORIZATION));
+        assertEquals(false, new File(file.getPath() + ".tmp").exists());
+        store.put(SERIAL_NUMBER, Certificate.CertificateType.IDENTIFICATION, data(3, 50));
+        store.close();
+
+        store = new CertificateStore(file, MAX_SIZE);
+        assertArrayEquals(data(2, 100), store.get(SERIAL_NUMBER, Certificate.CertificateType.AUTHORIZATION));
+        assertArrayEquals(data(3, 50), store.get(SERIAL_NUMBER, Certificate.CertificateType.IDENTIFICATION));
+        store.close();
+    }
+
+    @Test
+    public void compactionKeepsNewestRecords() throws IOException {
+        CertificateStore store = new CertificateStore(file, MAX_SIZE);
+        store.put(SERIAL_NUMBER, Certificate.CertificateType.AUTHORIZATION, data(1, 100));
+        store.put(SERIAL_NUMBER, Certificate.CertificateType.AUTHORIZATION, data(2, 100));
+        store.put(SERIAL_NUMBER, Certificate.CertificateType.IDENTIFICATION, data(3, 50));
+        store.remove(SERIAL_NUMBER, Certificate.CertificateType.IDENTIFICATION);
+        store.compact();
+
+        assertEquals(store.getLiveBytes(), store.getUsedBytes());
+        assertEquals(1, store.size());
+        assertArrayEquals(data(2, 100), store.get(SERIAL_NUMBER, Certificate.CertificateType.AUTHORIZATION));
+        store.close();
+    }
+
+    /**
+     * @return position of the second record
+     */
+    private int writeTwoRecords() throws IOException {
+        CertificateStore store = new CertificateStore(file, MAX_SIZE);
+        store.put(SERIAL_NUMBER, Certificate.CertificateType.AUTHORIZATION, data(1, 100));
+        int secondRecord = store.getUsedBytes();
+        store.put(SERIAL_NUMBER, Certificate.CertificateType.IDENTIFICATION, data(2, 100));
+        store.close();
+        return secondRecord;
+    }
+
+    private static byte[] data(int seed, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed + i);
+        }
+        return data;
+    }
+}
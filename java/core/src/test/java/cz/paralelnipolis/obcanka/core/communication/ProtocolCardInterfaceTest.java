@@ -0,0 +1,129 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.communication;
+
+import cz.paralelnipolis.obcanka.core.HexUtils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ProtocolCardInterfaceTest {
+    private static final String ATR = "3B 00";
+    private static final String DATA_16 = "00 01 02 03 04 05 06 07 08 09 0A 0B 0C 0D 0E 0F";
+    private static final String DATA_5 = "10 11 12 13 14";
+
+    @Test
+    public void chainedGetResponseIsResolvedBeforeRestOfBatch() throws CardException {
+        ScriptedCardInterface ci = new ScriptedCardInterface(ATR)
+                .expect("00 A4 08 00 02 00 01", "90 00")
+                .expect("00 B0 00 00 00", "61 10")
+                .expect("00 C0 00 00 10", DATA_16 + "61 05")
+                .expect("00 C0 00 00 05", DATA_5 + "90 00")
+                .expect("00 D6 00 00 01 AA", "90 00");
+        ProtocolCardInterface protocol = new ProtocolCardInterface(ci);
+
+        List<IResponseAPDU> responses = protocol.transmitBatch(commands(ci,
+                "00 A4 08 00 02 00 01", "00 B0 00 00 00", "00 D6 00 00 01 AA"));
+
+        ci.assertAllSent();
+        assertEquals(Arrays.asList(2, 1), ci.getBatchSizes()); //batch is split after the command with Le
+        assertEquals(3, responses.size());
+        assertEquals(0x9000, responses.get(0).getSW());
+        assertArrayEquals(hex(DATA_16 + DATA_5), responses.get(1).getData());
+        assertEquals(0x9000, responses.get(1).getSW());
+        assertEquals(0x9000, responses.get(2).getSW());
+        assertEquals(2, protocol.getGetResponses());
+    }
+
+    @Test
+    public void wrongLeIsResentBeforeRestOfBatch() throws CardException {
+        ScriptedCardInterface ci = new ScriptedCardInterface(ATR)
+                .expect("80 CA 01 01 00", "6C 03")
+                .expect("80 CA 01 01 03", "31 32 33 90 00")
+                .expect("80 CA 01 02 00", "AA BB 90 00");
+        ProtocolCardInterface protocol = new ProtocolCardInterface(ci);
+
+        List<IResponseAPDU> responses = protocol.transmitBatch(commands(ci, "80 CA 01 01 00", "80 CA 01 02 00"));
+
+        ci.assertAllSent();
+        assertArrayEquals(hex("31 32 33"), responses.get(0).getData());
+        assertArrayEquals(hex("AA BB"), responses.get(1).getData());
+        assertEquals(1, protocol.getLeResends());
+    }
+
+    @Test
+    public void getResponseOnLogicalChannelKeepsChannel() throws CardException {
+        ScriptedCardInterface ci = new ScriptedCardInterface(ATR)
+                .expect("45 B0 00 00 00", "61 05")
+                .expect("45 C0 00 00 05", DATA_5 + "90 00");
+        ProtocolCardInterface protocol = new ProtocolCardInterface(ci);
+
+        IResponseAPDU r = protocol.transmit(ci.createCommand(hex("45 B0 00 00 00"))); //channel 9
+
+        ci.assertAllSent();
+        assertArrayEquals(hex(DATA_5), r.getData());
+    }
+
+    @Test
+    public void additionalCommandsAreLimited() {
+        ScriptedCardInterface ci = new ScriptedCardInterface(ATR)
+                .expect("00 B0 00 00 00", "61 10")
+                .expect("00 C0 00 00 10", DATA_16 + "61 10")
+                .expect("00 C0 00 00 10", DATA_16 + "61 10")
+                .expect("00 D6 00 00 01 AA", "90 00");
+        ProtocolCardInterface protocol = new ProtocolCardInterface(ci, 2);
+
+        try {
+            protocol.transmitBatch(commands(ci, "00 B0 00 00 00", "00 D6 00 00 01 AA"));
+            fail("Card never finishing its response must not be followed forever.");
+        } catch (CardException e) {
+            assertEquals(Arrays.asList(1), ci.getBatchSizes()); //rest of the batch is not sent
+        }
+    }
+
+    @Test
+    public void wrongLeResendsAreLimited() {
+        ScriptedCardInterface ci = new ScriptedCardInterface(ATR)
+                .expect("80 CA 01 01 00", "6C 03")
+                .expect("80 CA 01 01 03", "6C 04");
+        ProtocolCardInterface protocol = new ProtocolCardInterface(ci, 1);
+
+        try {
+            protocol.transmit(ci.createCommand(hex("80 CA 01 01 00")));
+            fail("Card changing Le on every resend must not be followed forever.");
+        } catch (CardException e) {
+            ci.assertAllSent();
+        }
+    }
+
+    private static List<ICommandAPDU> commands(ICardInterface ci, String... requests) {
+        List<ICommandAPDU> commands = new ArrayList<>();
+        for (String request : requests) {
+            commands.add(ci.createCommand(hex(request)));
+        }
+        return commands;
+    }
+
+    private static byte[] hex(String s) {
+        return HexUtils.hexStringToByteArray(s);
+    }
+}
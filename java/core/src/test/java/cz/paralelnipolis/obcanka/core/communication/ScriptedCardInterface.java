@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.core.communication;
+
+import cz.paralelnipolis.obcanka.core.HexUtils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Card answering commands from a script. Every transmitted command must be the next expected one, otherwise
+ * the test fails. Commands and responses are hex strings, spaces are ignored.
+ */
+public class ScriptedCardInterface implements ICardInterface {
+    private final byte[] atr;
+    private final Deque<String[]> exchanges = new ArrayDeque<>();
+    private final List<Integer> batchSizes = new ArrayList<>();
+    private boolean extendedLength;
+
+    public ScriptedCardInterface(String atr) {
+        this.atr = HexUtils.hexStringToByteArray(atr);
+    }
+
+    public ScriptedCardInterface expect(String command, String response) {
+        exchanges.add(new String[]{normalize(command), response});
+        return this;
+    }
+
+    /**
+     * Expected command fails with CardException, e.g. card was removed.
+     */
+    public ScriptedCardInterface expectFailure(String command) {
+        exchanges.add(new String[]{normalize(command), null});
+        return this;
+    }
+
+    public void setExtendedLengthSupported(boolean extendedLength) {
+        this.extendedLength = extendedLength;
+    }
+
+    @Override
+    public IResponseAPDU transmit(ICommandAPDU command) throws CardException {
+        String sent = HexUtils.bytesToHexStringWithSpaces(command.getData());
+        String[] exchange = exchanges.poll();
+        if (exchange == null) {
+            fail("Unexpected command " + sent);
+        }
+        assertEquals(exchange[0], sent);
+        if (exchange[1] == null) {
+            throw new CardException("Scripted failure.");
+        }
+        return BufferResponseAPDU.wrap(HexUtils.hexStringToByteArray(exchange[1]));
+    }
+
+    @Override
+    public List<IResponseAPDU> transmitBatch(List<ICommandAPDU> commands) throws CardException {
+        batchSizes.add(commands.size());
+        return ICardInterface.super.transmitBatch(commands);
+    }
+
+    @Override
+    public ICommandAPDU createCommand(final byte[] commandData) {
+        return new ICommandAPDU() {
+            @Override
+            public byte[] getData() {
+                return commandData;
+            }
+        };
+    }
+
+    @Override
+    public byte[] getATR() {
+        return atr;
+    }
+
+    @Override
+    public boolean isExtendedLengthSupported() {
+        return extendedLength;
+    }
+
+    /**
+     * @return sizes of batches passed to {@link #transmitBatch(List)} in order
+     */
+    public List<Integer> getBatchSizes() {
+        return batchSizes;
+    }
+
+    public void assertAllSent() {
+        assertTrue("Commands not sent: " + exchanges.size(), exchanges.isEmpty());
+    }
+
+    private static String normalize(String hex) {
+        return HexUtils.bytesToHexStringWithSpaces(HexUtils.hexStringToByteArray(hex));
+    }
+}
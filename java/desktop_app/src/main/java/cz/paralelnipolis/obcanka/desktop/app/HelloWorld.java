@@ -26,6 +26,7 @@ import cz.paralelnipolis.obcanka.desktop.lib.DesktopCardInterface;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Map;
 
 /**
  * This is example desktop command line application that reads certificates from card and writes them on the filesystem.
@@ -60,10 +61,11 @@ public class HelloWorld {
         System.out.println("cm.getIokMaxTryLimit() = " + cm.getIokMaxTryLimit());
         System.out.println("cm.getIokTryLimit() = " + cm.getIokTryLimit());
 
-        Certificate longCert = cm.getCertificate(Certificate.CertificateType.IDENTIFICATION);
+        Map<Certificate.CertificateType, Certificate> certificates = cm.readAllCertificates();
+        Certificate longCert = certificates.get(Certificate.CertificateType.IDENTIFICATION);
         System.out.println("longCert = " + longCert);
 
-        Certificate shortCert = cm.getCertificate(Certificate.CertificateType.AUTHORIZATION);
+        Certificate shortCert = certificates.get(Certificate.CertificateType.AUTHORIZATION);
         System.out.println("shortCert = " + shortCert);
 
         try {
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.desktop.app;
+
+import cz.paralelnipolis.obcanka.desktop.lib.PinStateScanner;
+
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+
+/**
+ * Prints DOK/IOK state of cards in all connected readers as JSON lines.
+ */
+public class ScanReaders {
+    public static void main(String[] args) {
+        long start = System.currentTimeMillis();
+        try {
+            int cards = new PinStateScanner(new OutputStreamWriter(System.out, Charset.forName("UTF-8"))).scan();
+            System.err.println(cards + " cards scanned in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (javax.smartcardio.CardException e) {
+            e.printStackTrace();
+        }
+    }
+}
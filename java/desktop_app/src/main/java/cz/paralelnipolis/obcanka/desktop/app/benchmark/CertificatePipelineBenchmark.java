@@ -0,0 +1,89 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.desktop.app.benchmark;
+
+import cz.paralelnipolis.obcanka.core.card.Card;
+import cz.paralelnipolis.obcanka.core.certificates.Certificate;
+import cz.paralelnipolis.obcanka.core.communication.CardException;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * Compares end-to-end time of reading and parsing both certificates one after another (as HelloWorld did)
+ * with Card.readAllCertificates() which parses on a separate thread while the next file is read.
+ * <p>
+ * With a warm JVM parsing takes about 1 ms, so both ways take nearly the same time. It pays off when parsing is slow,
+ * typically the first certificate parsed by the process (X.509 and ASN.1 classes are loaded and initialized then),
+ * which is the usual case of an application reading the card once. Cold mode measures exactly one call in this JVM,
+ * so it has to be run as separate processes for both ways.
+ * Usage: CertificatePipelineBenchmark [iterations] [apduDelayMillis] [directory with long.crt and short.crt]
+ * or CertificatePipelineBenchmark cold sequential|pipelined [apduDelayMillis] [directory]
+ */
+public class CertificatePipelineBenchmark {
+
+    public static void main(String[] args) throws CardException {
+        if (args.length > 1 && "cold".equals(args[0])) {
+            boolean pipelined = "pipelined".equals(args[1]);
+            long apduDelayMillis = args.length > 2 ? Long.parseLong(args[2]) : 5;
+            File certificates = new File(args.length > 3 ? args[3] : "../doc");
+            run((pipelined ? "readAllCertificates" : "sequential getCertificate") + " (cold)", 1, apduDelayMillis, certificates, pipelined);
+            return;
+        }
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        long apduDelayMillis = args.length > 1 ? Long.parseLong(args[1]) : 5;
+        File certificates = new File(args.length > 2 ? args[2] : "../doc");
+
+        run(null, iterations, apduDelayMillis, certificates, false); //warm up
+        run(null, iterations, apduDelayMillis, certificates, true);
+        run("sequential getCertificate", iterations, apduDelayMillis, certificates, false);
+        run("readAllCertificates", iterations, apduDelayMillis, certificates, true);
+    }
+
+    private static void run(String name, int iterations, long apduDelayMillis, File certificates, boolean pipelined) throws CardException {
+        long apdus = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            SimulatedCardInterface sim = new SimulatedCardInterface(apduDelayMillis, false);
+            sim.putSampleCertificates(certificates);
+            sim.setByteDelayNanos(100000); //roughly 9600 baud T=0
+            CountingCardInterface ci = new CountingCardInterface(sim);
+            Card card = new Card(ci);
+            card.setReadBinaryChunkSize(0xD0);
+
+            Certificate identification;
+            Certificate authorization;
+            if (pipelined) {
+                Map<Certificate.CertificateType, Certificate> all = card.readAllCertificates();
+                identification = all.get(Certificate.CertificateType.IDENTIFICATION);
+                authorization = all.get(Certificate.CertificateType.AUTHORIZATION);
+            } else {
+                identification = card.getCertificate(Certificate.CertificateType.IDENTIFICATION);
+                authorization = card.getCertificate(Certificate.CertificateType.AUTHORIZATION);
+            }
+            if (identification == null || authorization == null) {
+                throw new CardException("Certificates were not read.");
+            }
+            apdus += ci.getApduCount();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (name == null) {
+            return;
+        }
+        System.out.println(String.format("%-28s", name) + ": " + (apdus / (double) iterations) + " APDUs, "
+                + String.format("%.2f", elapsed / 1e6 / iterations) + " ms for both");
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.desktop.app.benchmark;
+
+import cz.paralelnipolis.obcanka.core.communication.CardException;
+import cz.paralelnipolis.obcanka.core.communication.ICardInterface;
+import cz.paralelnipolis.obcanka.core.communication.ICommandAPDU;
+import cz.paralelnipolis.obcanka.core.communication.IResponseAPDU;
+
+import java.util.List;
+
+/**
+ * Counts APDUs passing to the target card interface and time spent in it.
+ */
+public class CountingCardInterface implements ICardInterface {
+    private ICardInterface targetCardInterface;
+    private int apduCount;
+    private long transmitNanos;
+
+    public CountingCardInterface(ICardInterface targetCardInterface) {
+        this.targetCardInterface = targetCardInterface;
+    }
+
+    @Override
+    public IResponseAPDU transmit(ICommandAPDU command) throws CardException {
+        apduCount++;
+        long start = System.nanoTime();
+        try {
+            return targetCardInterface.transmit(command);
+        } finally {
+            transmitNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public List<IResponseAPDU> transmitBatch(List<ICommandAPDU> commands) throws CardException {
+        apduCount += commands.size();
+        long start = System.nanoTime();
+        try {
+            return targetCardInterface.transmitBatch(commands);
+        } finally {
+            transmitNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public ICommandAPDU createCommand(byte[] commandData) {
+        return targetCardInterface.createCommand(commandData);
+    }
+
+    @Override
+    public byte[] getATR() {
+        return targetCardInterface.getATR();
+    }
+
+    @Override
+    public boolean isExtendedLengthSupported() {
+        return targetCardInterface.isExtendedLengthSupported();
+    }
+
+    @Override
+    public int openLogicalChannel() throws CardException {
+        apduCount++; //MANAGE CHANNEL
+        long start = System.nanoTime();
+        try {
+            return targetCardInterface.openLogicalChannel();
+        } finally {
+            transmitNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void closeLogicalChannel(int channel) throws CardException {
+        apduCount++;
+        long start = System.nanoTime();
+        try {
+            targetCardInterface.closeLogicalChannel(channel);
+        } finally {
+            transmitNanos += System.nanoTime() - start;
+        }
+    }
+
+    public int getApduCount() {
+        return apduCount;
+    }
+
+    public long getTransmitNanos() {
+        return transmitNanos;
+    }
+
+    public void reset() {
+        apduCount = 0;
+        transmitNanos = 0;
+    }
+}
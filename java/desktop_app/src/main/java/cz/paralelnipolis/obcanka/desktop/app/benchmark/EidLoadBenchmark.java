@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.desktop.app.benchmark;
+
+import cz.paralelnipolis.obcanka.core.card.Card;
+import cz.paralelnipolis.obcanka.core.card.CardSnapshot;
+import cz.paralelnipolis.obcanka.core.card.enums.CardAuthorizationResult;
+import cz.paralelnipolis.obcanka.core.card.enums.PINType;
+import cz.paralelnipolis.obcanka.core.certificates.Certificate;
+import cz.paralelnipolis.obcanka.core.communication.CardException;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs complete Card sessions against EidSimulatedCardInterface from more threads to load the host side stack.
+ * Every session uses new Card on a freshly reset simulated card and reads the snapshot, both certificates,
+ * changes IOK back and forth and creates encryption token.
+ * Usage: EidLoadBenchmark [seconds] [threads] [directory with long.crt and short.crt]
+ */
+public class EidLoadBenchmark {
+    private static final String OTHER_IOK_PIN = "4321";
+
+    public static void main(String[] args) throws CardException, InterruptedException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        File certificates = new File(args.length > 2 ? args[2] : "../doc");
+
+        run(null, Math.max(1, seconds / 5), threads, certificates); //warm up
+        run(threads + " threads", seconds, threads, certificates);
+    }
+
+    private static void run(String name, int seconds, int threads, final File certificates) throws CardException, InterruptedException {
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long sessions = 0;
+        long apdus = 0;
+        long start = System.nanoTime();
+        try {
+            List<Future<long[]>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(new Callable<long[]>() {
+                    @Override
+                    public long[] call() throws CardException {
+                        EidSimulatedCardInterface sim = new EidSimulatedCardInterface(0, false);
+                        sim.putSampleCertificates(certificates);
+                        CountingCardInterface ci = new CountingCardInterface(sim);
+                        long sessions = 0;
+                        while (System.nanoTime() < deadline) {
+                            sim.reset();
+                            sim.resetSession();
+                            runSession(new Card(ci));
+                            sessions++;
+                        }
+                        return new long[]{sessions, ci.getApduCount()};
+                    }
+                }));
+            }
+            for (Future<long[]> future : futures) {
+                long[] result = future.get();
+                sessions += result[0];
+                apdus += result[1];
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof CardException ? (CardException) e.getCause() : new CardException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (name == null) {
+            return;
+        }
+        System.out.println(String.format("%-12s", name) + ": " + String.format("%.0f", sessions / (elapsed / 1e9)) + " sessions/s, "
+                + String.format("%.0f", apdus / (elapsed / 1e9)) + " APDUs/s, " + (apdus / Math.max(1, sessions)) + " APDUs per session");
+    }
+
+    private static void runSession(Card card) throws CardException {
+        CardSnapshot snapshot = card.readSnapshot();
+        if (snapshot == null) {
+            throw new CardException("Snapshot was not read.");
+        }
+        if (card.getCertificate(Certificate.CertificateType.IDENTIFICATION) == null
+                || card.getCertificate(Certificate.CertificateType.AUTHORIZATION) == null) {
+            throw new CardException("Certificates were not read.");
+        }
+        if (card.changePIN(PINType.IOK, EidSimulatedCardInterface.DEFAULT_IOK_PIN, OTHER_IOK_PIN) != CardAuthorizationResult.OK
+                || card.changePIN(PINType.IOK, OTHER_IOK_PIN, EidSimulatedCardInterface.DEFAULT_IOK_PIN) != CardAuthorizationResult.OK) {
+            throw new CardException("IOK was not changed.");
+        }
+        if (card.createEncryptionToken() == null) {
+            throw new CardException("Encryption token was not created.");
+        }
+    }
+}
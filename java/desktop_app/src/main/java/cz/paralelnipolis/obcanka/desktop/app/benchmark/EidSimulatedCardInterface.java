@@ -0,0 +1,246 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.desktop.app.benchmark;
+
+import cz.paralelnipolis.obcanka.core.HexUtils;
+import cz.paralelnipolis.obcanka.core.encryption.EncryptionUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Software eID card for load tests. Compared to the plain simulator it knows card management and file management
+ * applications with their AIDs (per logical channel), serves KCV and key counter tags and implements DOK/IOK change
+ * and IOK unblock with payload encrypted by SakC derived from the test master key, so whole Card sessions including
+ * PIN operations and createEncryptionToken() can run without a reader.
+ */
+public class EidSimulatedCardInterface extends SecureMessagingSimulatedCardInterface {
+    public static final byte[] APP_ID_CARD_MANAGEMENT = HexUtils.hexStringToByteArray("D2 03 10 01 00 01 00 02 02");
+    public static final byte[] APP_ID_FILE_MANAGEMENT = HexUtils.hexStringToByteArray("D2 03 10 01 00 01 03 02 01 00");
+    public static final String DEFAULT_DOK_PIN = "123456";
+    public static final String DEFAULT_IOK_PIN = "1234";
+
+    private static final byte[] MASTER_KEY = HexUtils.hexStringToByteArray("41 42 43 44 45 46 47 48 31 32 33 34 35 36 37 38 21 22 23 24 25 26 27 28 11 12 13 14 15 16 17 18");
+    private static final byte[] CARD_NUMBER = "123456789".getBytes();
+    private static final byte[] SERIAL_NUMBER = HexUtils.hexStringToByteArray("00 00 00 00 00 00 00 00 00 00 01 02 03 04 05 06"); //has to be 16 bytes, so SakC derivation input fits AES blocks
+    private static final int MAX_TRY_LIMIT = 3;
+    private static final int PIN_LENGTH = 10;
+
+    private final byte[] sakKey;
+    private byte[][] selectedApplications = new byte[20][];
+    private byte[] keyCounter = new byte[4];
+    private String dokPin = DEFAULT_DOK_PIN;
+    private String iokPin = DEFAULT_IOK_PIN;
+    private int dokTryLimit = MAX_TRY_LIMIT;
+    private int iokTryLimit = MAX_TRY_LIMIT;
+
+    public EidSimulatedCardInterface(long apduDelayMillis, boolean strictLe) {
+        super(apduDelayMillis, strictLe);
+        putTag(0x01, CARD_NUMBER);
+        putTag(0x02, SERIAL_NUMBER);
+        putTag(0x10 | 0xC0, EncryptionUtils.calculateKeyChecksumValue(MASTER_KEY)); //KCV with auth id 1
+        sakKey = EncryptionUtils.encryptWithAESCBCNone(MASTER_KEY, HexUtils.concatArrays(new byte[]{(byte) 0x86, (byte) 0xC5},
+                SERIAL_NUMBER, CARD_NUMBER, SERIAL_NUMBER, new byte[]{0x45, 0x4E, 0x43, 0x00, (byte) 0xD3}));
+        putTag(0x10 | 0xC1, keyCounter); //key counter with auth id 1
+        selectedApplications[0] = APP_ID_CARD_MANAGEMENT;
+        updatePinTags();
+    }
+
+    public void setDokPin(String dokPin) {
+        this.dokPin = dokPin;
+    }
+
+    public String getDokPin() {
+        return dokPin;
+    }
+
+    public void setIokPin(String iokPin) {
+        this.iokPin = iokPin;
+    }
+
+    public String getIokPin() {
+        return iokPin;
+    }
+
+    public int getDokTryLimit() {
+        return dokTryLimit;
+    }
+
+    public int getIokTryLimit() {
+        return iokTryLimit;
+    }
+
+    /**
+     * @return number of secure code operations done with SakC, i.e. value of key counter tag
+     */
+    public long getKeyCounter() {
+        long value = 0;
+        for (byte b : keyCounter) {
+            value = value << 8 | HexUtils.byteToInt(b);
+        }
+        return value;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        Arrays.fill(selectedApplications, null);
+    }
+
+    @Override
+    protected byte[] process(byte[] apdu) {
+        //CLA 0x8C has secure messaging bits set, but PIN commands are only encrypted by SakC
+        if (apdu.length >= 5 && apdu[0] == (byte) 0x8C && apdu[1] == 0x24) {
+            return changeOrUnblockPIN(apdu);
+        }
+        return super.process(apdu);
+    }
+
+    @Override
+    protected byte[] processPlain(byte[] apdu) {
+        if (apdu.length < 4) {
+            return super.processPlain(apdu);
+        }
+        int channel = getChannel(apdu[0]);
+        byte[] application = selectedApplications[channel];
+        int ins = HexUtils.byteToInt(apdu[1]);
+        if (ins == 0xA4 && apdu[2] == 0x04) { //SELECT by AID
+            byte[] aid = apdu.length >= 5 ? Arrays.copyOfRange(apdu, 5, Math.min(apdu.length, 5 + HexUtils.byteToInt(apdu[4]))) : new byte[0];
+            if (!Arrays.equals(aid, APP_ID_CARD_MANAGEMENT) && !Arrays.equals(aid, APP_ID_FILE_MANAGEMENT)) {
+                return sw(0x6A82);
+            }
+            selectedApplications[channel] = Arrays.equals(aid, APP_ID_CARD_MANAGEMENT) ? APP_ID_CARD_MANAGEMENT : APP_ID_FILE_MANAGEMENT;
+        } else if (ins == 0xA4 && apdu[2] == 0x08) { //SELECT by path
+            if (application != null && application != APP_ID_FILE_MANAGEMENT) {
+                return sw(0x6A82);
+            }
+        } else if (ins == 0xCA) { //GET DATA
+            if (application != null && application != APP_ID_CARD_MANAGEMENT) {
+                return sw(0x6A88);
+            }
+        } else if (ins == 0x70 && apdu[2] == (byte) 0x80 && HexUtils.byteToInt(apdu[3]) < selectedApplications.length) {
+            selectedApplications[HexUtils.byteToInt(apdu[3])] = null;
+        }
+        return super.processPlain(apdu);
+    }
+
+    private byte[] changeOrUnblockPIN(byte[] apdu) {
+        if (selectedApplications[getChannel(apdu[0])] != APP_ID_CARD_MANAGEMENT) {
+            return sw(0x6D00);
+        }
+        int lc = HexUtils.byteToInt(apdu[4]);
+        if (apdu.length < 5 + lc || lc == 0 || lc % 16 != 0) {
+            return sw(0x6700);
+        }
+        byte[] nextCounter = EncryptionUtils.incrementCounter(keyCounter);
+        byte[] plain = decryptSecureCodeData(nextCounter, Arrays.copyOfRange(apdu, 5, 5 + lc));
+        if (plain == null || plain.length != 2 * PIN_LENGTH) {
+            return sw(0x6988);
+        }
+        keyCounter = nextCounter;
+        putTag(0x10 | 0xC1, keyCounter);
+        String pinA = toPin(plain, 0);
+        String pinB = toPin(plain, PIN_LENGTH);
+
+        int p1 = HexUtils.byteToInt(apdu[2]);
+        int p2 = HexUtils.byteToInt(apdu[3]);
+        byte[] result;
+        if (p1 == 0 && p2 == 0x10) { //change DOK
+            result = verifyDok(pinA);
+            if (result == null) {
+                dokPin = pinB;
+            }
+        } else if (p1 == 0 && p2 == 0x11) { //change IOK
+            if (iokTryLimit == 0) {
+                return sw(0x6983);
+            }
+            if (!iokPin.equals(pinA)) {
+                iokTryLimit--;
+                result = sw(0x63C0 | iokTryLimit);
+            } else {
+                iokTryLimit = MAX_TRY_LIMIT;
+                iokPin = pinB;
+                result = null;
+            }
+        } else if (p1 == 1 && p2 == 0x11) { //unblock IOK by DOK
+            result = verifyDok(pinA);
+            if (result == null) {
+                iokPin = pinB;
+                iokTryLimit = MAX_TRY_LIMIT;
+            }
+        } else {
+            return sw(0x6A86);
+        }
+        updatePinTags();
+        return result != null ? result : sw(0x9000);
+    }
+
+    /**
+     * @return null when DOK is correct, status word otherwise
+     */
+    private byte[] verifyDok(String pin) {
+        if (dokTryLimit == 0) {
+            return sw(0x6983);
+        }
+        if (!dokPin.equals(pin)) {
+            dokTryLimit--;
+            return sw(0x63C0 | dokTryLimit);
+        }
+        dokTryLimit = MAX_TRY_LIMIT;
+        return null;
+    }
+
+    private void updatePinTags() {
+        putTag(0x8B, new byte[]{(byte) (dokTryLimit > 0 ? 0x01 : 0x04)}); //DOK state
+        putTag(0x8C, new byte[]{(byte) dokTryLimit});
+        putTag(0x8D, new byte[]{MAX_TRY_LIMIT});
+        putTag(0x82, new byte[]{(byte) (iokTryLimit > 0 ? 0x01 : 0x04)}); //IOK state
+        putTag(0x83, new byte[]{(byte) iokTryLimit});
+        putTag(0x84, new byte[]{MAX_TRY_LIMIT});
+    }
+
+    private byte[] decryptSecureCodeData(byte[] counter, byte[] encrypted) {
+        try {
+            Mac hmac = Mac.getInstance("HmacSHA256");
+            hmac.init(new SecretKeySpec(sakKey, "HmacSHA256"));
+            byte[] decrypted = EncryptionUtils.decryptWithAESCBCNone(hmac.doFinal(counter), encrypted);
+            return decrypted != null ? EncryptionUtils.unpadDataWithISO7816_4(decrypted) : null;
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        } catch (InvalidKeyException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private static String toPin(byte[] data, int offset) {
+        int length = 0;
+        while (length < PIN_LENGTH && data[offset + length] != (byte) 0xFF) {
+            length++;
+        }
+        return new String(data, offset, length);
+    }
+
+    private static int getChannel(byte cla) {
+        if ((cla & 0x40) != 0) {
+            return (cla & 0x0F) + 4;
+        }
+        return cla & 0x03;
+    }
+}
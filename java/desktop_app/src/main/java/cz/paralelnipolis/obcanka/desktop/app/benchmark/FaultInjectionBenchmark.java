@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.desktop.app.benchmark;
+
+import cz.paralelnipolis.obcanka.core.card.Card;
+import cz.paralelnipolis.obcanka.core.card.CardSnapshot;
+import cz.paralelnipolis.obcanka.core.certificates.Certificate;
+import cz.paralelnipolis.obcanka.core.communication.CardException;
+import cz.paralelnipolis.obcanka.core.debug.FaultInjectingCardInterface;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Reads snapshot and both certificates in sessions over a simulated slow and unreliable T=0 reader
+ * and prints percentiles of session time, so retries and recoveries done by Card show up in the tail.
+ * Usage: FaultInjectionBenchmark [sessions] [seed] [directory with long.crt and short.crt]
+ */
+public class FaultInjectionBenchmark {
+
+    public static void main(String[] args) {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+        File certificates = new File(args.length > 2 ? args[2] : "../doc");
+
+        run("reliable reader", sessions, seed, certificates, false);
+        run("faulty reader", sessions, seed, certificates, true);
+    }
+
+    private static void run(String name, int sessions, long seed, File certificates, boolean faults) {
+        final EidSimulatedCardInterface sim = new EidSimulatedCardInterface(0, false);
+        sim.putSampleCertificates(certificates);
+        FaultInjectingCardInterface ci = new FaultInjectingCardInterface(sim, seed);
+        ci.setApduLatency(FaultInjectingCardInterface.logNormal(2000000, 0.5));
+        ci.setByteLatency(FaultInjectingCardInterface.fixed(100000)); //roughly 9600 baud T=0
+        if (faults) {
+            ci.setApduLatency(FaultInjectingCardInterface.withSpikes(FaultInjectingCardInterface.logNormal(2000000, 0.5),
+                    0.01, FaultInjectingCardInterface.uniform(20000000, 100000000)));
+            ci.setSwErrors(0.005, 0x6F00, 0x6581);
+            ci.setExceptionProbability(0.002);
+            ci.setResetProbability(0.005, new Runnable() {
+                @Override
+                public void run() {
+                    sim.reset();
+                    sim.resetSession();
+                }
+            });
+            ci.setAtrChangeProbability(0.001);
+        }
+        Card card = new Card(ci);
+
+        long[] millis = new long[sessions];
+        int failed = 0;
+        for (int i = 0; i < sessions; i++) {
+            long start = System.nanoTime();
+            try {
+                CardSnapshot snapshot = card.readSnapshot();
+                Certificate identification = card.getCertificate(Certificate.CertificateType.IDENTIFICATION);
+                Certificate authorization = card.getCertificate(Certificate.CertificateType.AUTHORIZATION);
+                if (snapshot == null || identification == null || authorization == null) {
+                    failed++;
+                }
+            } catch (CardException e) {
+                failed++;
+            }
+            millis[i] = (System.nanoTime() - start) / 1000000;
+        }
+        Arrays.sort(millis);
+        System.out.println(String.format("%-16s", name) + ": p50 " + percentile(millis, 0.5) + " ms, p90 " + percentile(millis, 0.9)
+                + " ms, p99 " + percentile(millis, 0.99) + " ms, max " + millis[millis.length - 1] + " ms, failed sessions " + failed
+                + ", resets recovered by Card " + card.getSession().getRecoveries());
+        System.out.println(String.format("%-16s", "") + "  " + ci);
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))];
+    }
+}
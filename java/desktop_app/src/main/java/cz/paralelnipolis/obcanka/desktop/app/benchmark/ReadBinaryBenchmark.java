@@ -0,0 +1,89 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.desktop.app.benchmark;
+
+import cz.paralelnipolis.obcanka.core.card.Card;
+import cz.paralelnipolis.obcanka.core.certificates.Certificate;
+import cz.paralelnipolis.obcanka.core.communication.CardException;
+
+import java.io.File;
+
+/**
+ * Compares number of round trips and wall time needed to download both certificates
+ * with fixed 0xD0 chunks and with negotiated READ BINARY chunk size.
+ * Usage: ReadBinaryBenchmark [iterations] [apduDelayMillis] [directory with long.crt and short.crt]
+ */
+public class ReadBinaryBenchmark {
+    private static final int LEGACY_CHUNK_SIZE = 0xD0;
+
+    public static void main(String[] args) throws CardException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        long apduDelayMillis = args.length > 1 ? Long.parseLong(args[1]) : 5;
+        File certificates = new File(args.length > 2 ? args[2] : "../doc");
+
+        run(null, iterations, apduDelayMillis, certificates, Scenario.SHORT); //warm up
+        run("fixed 0xD0 chunks", iterations, apduDelayMillis, certificates, Scenario.LEGACY);
+        run("short Le=0x00", iterations, apduDelayMillis, certificates, Scenario.SHORT);
+        run("extended Le", iterations, apduDelayMillis, certificates, Scenario.EXTENDED);
+        run("extended rejected by reader", iterations, apduDelayMillis, certificates, Scenario.EXTENDED_REJECTED);
+        run("card limited to 0xD0", iterations, apduDelayMillis, certificates, Scenario.LIMITED_CARD);
+    }
+
+    private enum Scenario {
+        LEGACY,
+        SHORT,
+        EXTENDED,
+        EXTENDED_REJECTED,
+        LIMITED_CARD
+    }
+
+    private static void run(String name, int iterations, long apduDelayMillis, File certificates, Scenario scenario) throws CardException {
+        long identificationApdus = 0;
+        long authorizationApdus = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            SimulatedCardInterface sim = new SimulatedCardInterface(apduDelayMillis, false);
+            sim.putSampleCertificates(certificates);
+            sim.setByteDelayNanos(100000); //roughly 9600 baud T=0
+            if (scenario == Scenario.EXTENDED) {
+                sim.setAtr(SimulatedCardInterface.ATR_EXTENDED_LENGTH);
+                sim.setExtendedLength(true);
+            } else if (scenario == Scenario.EXTENDED_REJECTED) {
+                sim.setAtr(SimulatedCardInterface.ATR_EXTENDED_LENGTH);
+            } else if (scenario == Scenario.LIMITED_CARD) {
+                sim.setMaxShortLe(LEGACY_CHUNK_SIZE);
+            }
+            CountingCardInterface ci = new CountingCardInterface(sim);
+            Card card = new Card(ci);
+            if (scenario == Scenario.LEGACY) {
+                card.setReadBinaryChunkSize(LEGACY_CHUNK_SIZE);
+            }
+
+            card.getCertificate(Certificate.CertificateType.IDENTIFICATION);
+            identificationApdus += ci.getApduCount();
+            ci.reset();
+            card.getCertificate(Certificate.CertificateType.AUTHORIZATION);
+            authorizationApdus += ci.getApduCount();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (name == null) {
+            return;
+        }
+        System.out.println(String.format("%-28s", name) + ": IDENTIFICATION " + (identificationApdus / (double) iterations)
+                + " APDUs, AUTHORIZATION " + (authorizationApdus / (double) iterations) + " APDUs, "
+                + String.format("%.2f", elapsed / 1e6 / iterations) + " ms for both");
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.desktop.app.benchmark;
+
+import cz.paralelnipolis.obcanka.core.card.Card;
+import cz.paralelnipolis.obcanka.core.card.LeCache;
+import cz.paralelnipolis.obcanka.core.certificates.Certificate;
+import cz.paralelnipolis.obcanka.core.communication.CardException;
+import cz.paralelnipolis.obcanka.core.communication.ICardInterface;
+import cz.paralelnipolis.obcanka.core.debug.RecordingCardInterface;
+import cz.paralelnipolis.obcanka.core.debug.ReplayCardInterface;
+import cz.paralelnipolis.obcanka.core.encryption.SecureMessagingCardInterface;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Map;
+
+/**
+ * Replays a recorded session (snapshot, both certificates and two GET DATA over secure messaging) to measure
+ * host time without a card. When the transcript doesn't exist, it is recorded from the simulated card first.
+ * Usage: ReplayBenchmark [transcript] [iterations] [directory with long.crt and short.crt]
+ */
+public class ReplayBenchmark {
+    private static final byte[] GET_DATA_CARD_NUMBER = {0x00, (byte) 0xCA, 0x00, 0x01, 0x00};
+    private static final byte[] GET_DATA_DOK_STATE = {0x00, (byte) 0xCA, 0x00, (byte) 0x8B, 0x01};
+    private static final byte[] RANDOM_SEED = {1, 2, 3, 4};
+
+    public static void main(String[] args) throws CardException, IOException, NoSuchAlgorithmException {
+        File transcript = new File(args.length > 0 ? args[0] : "session.obtr");
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        File certificates = new File(args.length > 2 ? args[2] : "../doc");
+
+        if (!transcript.exists()) {
+            SecureMessagingSimulatedCardInterface sim = new SecureMessagingSimulatedCardInterface(5, false);
+            sim.putSampleCertificates(certificates);
+            try (RecordingCardInterface recording = new RecordingCardInterface(sim, new FileOutputStream(transcript))) {
+                runSession(recording);
+                System.out.println("Recorded " + recording.getRecords() + " APDUs into " + transcript);
+            }
+        }
+
+        ReplayCardInterface replay = ReplayCardInterface.load(transcript);
+        if (replay.isTruncated()) {
+            System.out.println("Transcript ends with incomplete record, " + replay.getRemaining() + " complete records are replayed.");
+        }
+        for (int i = 0; i < iterations / 10; i++) { //warm up
+            replay.rewind();
+            runSession(replay);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            replay.rewind();
+            runSession(replay);
+        }
+        long host = System.nanoTime() - start;
+        System.out.println("host time per session     : " + String.format("%.2f", host / 1e6 / iterations) + " ms");
+
+        replay.rewind();
+        replay.setEmulateTiming(true);
+        start = System.nanoTime();
+        runSession(replay);
+        System.out.println("replayed with card timing : " + String.format("%.2f", (System.nanoTime() - start) / 1e6) + " ms, recorded card time "
+                + String.format("%.2f", replay.getRecordedMicros() / 1e3) + " ms");
+    }
+
+    private static void runSession(ICardInterface ci) throws CardException, NoSuchAlgorithmException {
+        Card card = new Card(ci, new LeCache()); //learned lengths would change the commands
+        if (card.readSnapshot() == null) {
+            throw new CardException("Snapshot failed.");
+        }
+        Map<Certificate.CertificateType, Certificate> certificates = card.readAllCertificates();
+        if (certificates.size() != 2) {
+            throw new CardException("Certificates were not read.");
+        }
+
+        SecureMessagingCardInterface secured = new SecureMessagingCardInterface(ci);
+        SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+        random.setSeed(RANDOM_SEED); //same handshake commands in every session
+        secured.getSessionManager().setRandom(random);
+        secured.transmit(secured.createCommand(GET_DATA_CARD_NUMBER));
+        secured.transmit(secured.createCommand(GET_DATA_DOK_STATE));
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.desktop.app.benchmark;
+
+import cz.paralelnipolis.obcanka.core.communication.CardException;
+import cz.paralelnipolis.obcanka.core.communication.ICardInterface;
+import cz.paralelnipolis.obcanka.core.encryption.SecureMessagingCardInterface;
+
+/**
+ * Measures host side cost of secure messaging per APDU. Time spent in the simulated card (including its own
+ * secure messaging work) is subtracted, so only wrapping and unwrapping done by SecureMessagingCardInterface remains.
+ * Usage: SecureMessagingBenchmark [apdus]
+ */
+public class SecureMessagingBenchmark {
+    private static final byte[] GET_DATA_CARD_NUMBER = {0x00, (byte) 0xCA, 0x00, 0x01, 0x00};
+    private static final byte[] GET_DATA_DOK_STATE = {0x00, (byte) 0xCA, 0x00, (byte) 0x8B, 0x01};
+
+    public static void main(String[] args) throws CardException {
+        int apdus = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        run(null, apdus / 10, false); //warm up
+        run(null, apdus / 10, true);
+        run("plain", apdus, false);
+        run("secure messaging", apdus, true);
+    }
+
+    private static void run(String name, int apdus, boolean secured) throws CardException {
+        SecureMessagingSimulatedCardInterface sim = new SecureMessagingSimulatedCardInterface(0, false);
+        CountingCardInterface card = new CountingCardInterface(sim);
+        ICardInterface ci = secured ? new SecureMessagingCardInterface(card) : card;
+
+        long start = System.nanoTime();
+        ci.transmit(ci.createCommand(GET_DATA_CARD_NUMBER));
+        long handshake = System.nanoTime() - start - card.getTransmitNanos();
+        int handshakeApdus = card.getApduCount() - 1;
+        card.reset();
+
+        start = System.nanoTime();
+        for (int i = 0; i < apdus; i++) {
+            ci.transmit(ci.createCommand(i % 2 == 0 ? GET_DATA_CARD_NUMBER : GET_DATA_DOK_STATE));
+        }
+        long host = System.nanoTime() - start - card.getTransmitNanos();
+        if (name == null) {
+            return;
+        }
+        System.out.println(String.format("%-18s", name) + ": " + String.format("%.2f", host / 1e3 / apdus) + " us host time per APDU"
+                + (secured ? ", handshake " + handshakeApdus + " APDUs and " + String.format("%.2f", handshake / 1e6) + " ms host time" : ""));
+    }
+}
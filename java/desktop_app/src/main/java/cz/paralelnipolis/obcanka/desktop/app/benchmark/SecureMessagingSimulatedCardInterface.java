@@ -0,0 +1,203 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.desktop.app.benchmark;
+
+import cz.paralelnipolis.obcanka.core.HexUtils;
+import cz.paralelnipolis.obcanka.core.encryption.EncryptionToken;
+import cz.paralelnipolis.obcanka.core.encryption.EncryptionUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Simulated card which also implements card side of the secure messaging handshake done by Card.createEncryptionToken()
+ * and unwraps/wraps commands with secure messaging class byte.
+ */
+public class SecureMessagingSimulatedCardInterface extends SimulatedCardInterface {
+    private static final byte[] CARD_INFO = HexUtils.hexStringToByteArray("9F 7F 2A 40 90 78 97 12 91 61 53 04 00 80 17 57 0C 1C 60 A7 9C 12 92 80 17 12 93 80 17 12 94 80 17 00 00 00 01 00 01 18 34 00 00 00 00");
+
+    private SecureRandom random = new SecureRandom();
+    private byte[] challenge;
+    private byte[] skEnc;
+    private byte[] skMac;
+    private byte[] counter;
+
+    public SecureMessagingSimulatedCardInterface(long apduDelayMillis, boolean strictLe) {
+        super(apduDelayMillis, strictLe);
+    }
+
+    /**
+     * Forgets secure messaging session as card reset does.
+     */
+    public void resetSession() {
+        skEnc = null;
+        skMac = null;
+        counter = null;
+    }
+
+    @Override
+    protected byte[] process(byte[] apdu) {
+        if (apdu.length >= 4 && (apdu[0] & 0x0C) == 0x0C) {
+            return processSecured(apdu);
+        }
+        int ins = apdu.length >= 4 ? HexUtils.byteToInt(apdu[1]) : -1;
+        if (ins == 0xCA && apdu[2] == (byte) 0x9F && apdu[3] == 0x7F) {
+            return HexUtils.concatArrays(CARD_INFO, sw(0x9000));
+        } else if (ins == 0x22) { //MSE SET
+            return sw(0x9000);
+        } else if (ins == 0x84) { //GET CHALLENGE
+            challenge = new byte[8];
+            random.nextBytes(challenge);
+            return HexUtils.concatArrays(challenge, sw(0x9000));
+        } else if (ins == 0x82) { //EXTERNAL AUTHENTICATE
+            return externalAuthenticate(apdu);
+        }
+        return processPlain(apdu);
+    }
+
+    /**
+     * Processes command without secure messaging, either received as it is or unwrapped from secured one.
+     */
+    protected byte[] processPlain(byte[] apdu) {
+        return super.process(apdu);
+    }
+
+    private byte[] externalAuthenticate(byte[] apdu) {
+        if (challenge == null || apdu.length < 5 + 80) {
+            return sw(0x6985);
+        }
+        byte[] encrypted = Arrays.copyOfRange(apdu, 5, 5 + 64);
+        byte[] mac = Arrays.copyOfRange(apdu, 5 + 64, 5 + 80);
+        if (!Arrays.equals(mac, EncryptionUtils.calculateAESCMAC(EncryptionToken.MAC_KEY, HexUtils.concatArrays(new byte[16], encrypted)))) {
+            return sw(0x6300);
+        }
+        byte[] information = EncryptionUtils.decryptWithAESCBCNone(EncryptionToken.AES_ENC_KEY, encrypted);
+        if (!Arrays.equals(Arrays.copyOfRange(information, 16, 24), challenge)) {
+            return sw(0x6300);
+        }
+        byte[] randomBytesA = Arrays.copyOfRange(information, 0, 8);
+        byte[] randomBytesB = Arrays.copyOfRange(information, 8, 16);
+        byte[] randomBytesC = Arrays.copyOfRange(information, 32, 64);
+
+        byte[] xorMask = new byte[32];
+        random.nextBytes(xorMask);
+        byte[] answer = HexUtils.concatArrays(new byte[16], randomBytesA, randomBytesB, xorMask);
+        byte[] encryptedAnswer = EncryptionUtils.encryptWithAESCBCNone(EncryptionToken.AES_ENC_KEY, answer);
+        byte[] answerMac = EncryptionUtils.calculateAESCMAC(EncryptionToken.MAC_KEY, HexUtils.concatArrays(new byte[16], encryptedAnswer));
+
+        byte[] inputForKeyDerivation = new byte[32];
+        for (int i = 0; i < inputForKeyDerivation.length; i++) {
+            inputForKeyDerivation[i] = (byte) (randomBytesC[i] ^ xorMask[i]);
+        }
+        skEnc = Arrays.copyOf(EncryptionUtils.sha256(HexUtils.concatArrays(inputForKeyDerivation, new byte[]{0, 0, 0, 1})), 16);
+        skMac = Arrays.copyOf(EncryptionUtils.sha256(HexUtils.concatArrays(inputForKeyDerivation, new byte[]{0, 0, 0, 2})), 16);
+        counter = HexUtils.concatArrays(challenge, randomBytesA);
+        challenge = null;
+        return HexUtils.concatArrays(encryptedAnswer, answerMac, sw(0x9000));
+    }
+
+    private byte[] processSecured(byte[] apdu) {
+        if (counter == null || apdu.length < 5) {
+            return sw(0x6988);
+        }
+        counter = EncryptionUtils.incrementCounter(counter);
+
+        int end = Math.min(apdu.length, 5 + HexUtils.byteToInt(apdu[4]));
+        byte[] le = null;
+        byte[] encryptedData = null;
+        byte[] mac = null;
+        ByteArrayOutputStream macedObjects = new ByteArrayOutputStream();
+        int position = 5;
+        while (position + 2 <= end) {
+            int tag = HexUtils.byteToInt(apdu[position]);
+            int valuePosition = position + 2;
+            int length = HexUtils.byteToInt(apdu[position + 1]);
+            if (length == 0x81) {
+                length = HexUtils.byteToInt(apdu[position + 2]);
+                valuePosition++;
+            }
+            if (valuePosition + length > end) {
+                return sw(0x6988);
+            }
+            byte[] value = Arrays.copyOfRange(apdu, valuePosition, valuePosition + length);
+            if (tag == 0x8E) {
+                mac = value;
+            } else {
+                macedObjects.write(apdu, position, valuePosition + length - position);
+                if (tag == 0x97) {
+                    le = value;
+                } else if (tag == 0x87) {
+                    encryptedData = Arrays.copyOfRange(value, 1, value.length); //skip padding indicator
+                } else if (tag == 0x85) {
+                    encryptedData = value;
+                }
+            }
+            position = valuePosition + length;
+        }
+        byte[] header = Arrays.copyOf(apdu, 4);
+        byte[] toBeMaced = HexUtils.concatArrays(counter, header, Arrays.copyOf(EncryptionUtils.PADDING_ISO7816_4, 12), macedObjects.toByteArray());
+        if (mac == null || !Arrays.equals(mac, EncryptionUtils.calculateAESCMAC(skMac, EncryptionUtils.padDataWithISO7816_4(toBeMaced)))) {
+            resetSession();
+            return sw(0x6988);
+        }
+
+        header[0] &= ~0x0C;
+        byte[] plainApdu = header;
+        if (encryptedData != null) {
+            byte[] data = decrypt(encryptedData);
+            plainApdu = HexUtils.concatArrays(header, new byte[]{(byte) data.length}, data);
+        }
+        if (le != null) {
+            plainApdu = HexUtils.concatArrays(plainApdu, le);
+        }
+        byte[] response = processPlain(plainApdu);
+        counter = EncryptionUtils.incrementCounter(counter);
+        byte[] wrapped = wrapResponse(response);
+        if (wrapped.length > 258) {
+            //secured response has to fit short APDU, so Le has to be smaller with secure messaging
+            wrapped = wrapResponse(sw(0x6700));
+        }
+        return wrapped;
+    }
+
+    private byte[] decrypt(byte[] encryptedData) {
+        byte[] decrypted = EncryptionUtils.decryptWithAESCBCNone(skEnc, HexUtils.concatArrays(EncryptionUtils.encryptWithAESCBCNone(skEnc, counter), encryptedData));
+        return EncryptionUtils.unpadDataWithISO7816_4(Arrays.copyOfRange(decrypted, 16, decrypted.length));
+    }
+
+    private byte[] wrapResponse(byte[] response) {
+        byte[] data = Arrays.copyOf(response, response.length - 2);
+        byte[] statusWord = Arrays.copyOfRange(response, response.length - 2, response.length);
+
+        byte[] encryptedObject = new byte[0];
+        if (data.length > 0) {
+            byte[] encrypted = EncryptionUtils.encryptWithAESCBCNone(skEnc, HexUtils.concatArrays(counter, EncryptionUtils.padDataWithISO7816_4(data)));
+            byte[] value = HexUtils.concatArrays(new byte[]{1}, Arrays.copyOfRange(encrypted, 16, encrypted.length));
+            encryptedObject = HexUtils.concatArrays(new byte[]{(byte) 0x87}, encodeLength(value.length), value);
+        }
+        byte[] statusObject = HexUtils.concatArrays(new byte[]{(byte) 0x99, 0x02}, statusWord);
+        byte[] mac = EncryptionUtils.calculateAESCMAC(skMac, EncryptionUtils.padDataWithISO7816_4(HexUtils.concatArrays(counter, encryptedObject, statusObject)));
+        return HexUtils.concatArrays(encryptedObject, statusObject, new byte[]{(byte) 0x8E, 0x10}, mac, statusWord);
+    }
+
+    private static byte[] encodeLength(int length) {
+        if (length < 0x80) {
+            return new byte[]{(byte) length};
+        }
+        return new byte[]{(byte) 0x81, (byte) length};
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.desktop.app.benchmark;
+
+import cz.paralelnipolis.obcanka.core.HexUtils;
+import cz.paralelnipolis.obcanka.core.communication.CardException;
+import cz.paralelnipolis.obcanka.core.communication.ICardInterface;
+import cz.paralelnipolis.obcanka.core.communication.ICommandAPDU;
+import cz.paralelnipolis.obcanka.core.communication.IResponseAPDU;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Very small card emulation used by benchmarks. It answers SELECT by AID, GET DATA
+ * for card management tags and SELECT/READ BINARY of files. GET DATA with wrong Le is answered with 6Cxx the same way real cards do.
+ */
+public class SimulatedCardInterface implements ICardInterface {
+    public static final byte[] ATR = HexUtils.hexStringToByteArray("80 66 47 50 00 B8 00 7F");
+    public static final byte[] ATR_EXTENDED_LENGTH = HexUtils.hexStringToByteArray("80 73 00 00 40");
+
+    private Map<Integer, byte[]> tags = new HashMap<>();
+    private Map<Integer, byte[]> files = new HashMap<>();
+    private byte[] selectedFile;
+    private boolean applicationSelected = true;
+    private long apduDelayMillis;
+    private long byteDelayNanos;
+    private boolean strictLe;
+    private byte[] atr = ATR;
+    private boolean extendedLength;
+    private int maxShortLe = 256;
+    private boolean[] openChannels = new boolean[1];
+
+    public SimulatedCardInterface(long apduDelayMillis, boolean strictLe) {
+        this.apduDelayMillis = apduDelayMillis;
+        this.strictLe = strictLe;
+        putTag(0x01, "123456789".getBytes());  //card number
+        putTag(0x02, HexUtils.hexStringToByteArray("00 00 00 00 00 01 02 03 04 05 06 07")); //certificate serial number
+        putTag(0x8B, new byte[]{0x01}); //DOK state
+        putTag(0x8C, new byte[]{0x03}); //DOK try limit
+        putTag(0x8D, new byte[]{0x03}); //DOK max try limit
+        putTag(0x82, new byte[]{0x01}); //IOK state
+        putTag(0x83, new byte[]{0x03}); //IOK try limit
+        putTag(0x84, new byte[]{0x03}); //IOK max try limit
+    }
+
+    public void putTag(int p2, byte[] value) {
+        tags.put(p2, value);
+    }
+
+    public void setAtr(byte[] atr) {
+        this.atr = atr;
+    }
+
+    /**
+     * Enables extended Le for READ BINARY. ATR is not changed, so it's possible to simulate reader which doesn't pass extended APDUs.
+     */
+    public void setExtendedLength(boolean extendedLength) {
+        this.extendedLength = extendedLength;
+    }
+
+    /**
+     * Short READ BINARY with bigger Le is answered with 6700.
+     */
+    public void setMaxShortLe(int maxShortLe) {
+        this.maxShortLe = maxShortLe;
+    }
+
+    /**
+     * Simulates transfer time of slow readers for every byte of command and response.
+     */
+    public void setByteDelayNanos(long byteDelayNanos) {
+        this.byteDelayNanos = byteDelayNanos;
+    }
+
+    /**
+     * Number of logical channels including the basic one. MANAGE CHANNEL is not supported when it's 1.
+     */
+    public void setLogicalChannels(int logicalChannels) {
+        this.openChannels = new boolean[logicalChannels];
+    }
+
+    /**
+     * Simulates card reset, selected application and file are forgotten and GET DATA is answered with 6D00
+     * until an application is selected again.
+     */
+    public void reset() {
+        applicationSelected = false;
+        selectedFile = null;
+        if (openChannels.length > 1) {
+            openChannels = new boolean[openChannels.length];
+        }
+    }
+
+    public void putFile(int fileId, byte[] content) {
+        files.put(fileId, content);
+    }
+
+    /**
+     * Loads long.crt and short.crt from given directory as identification and authorization certificate files.
+     * Random content of the same size is used when they are not available.
+     */
+    public void putSampleCertificates(File directory) {
+        putFile(0x0001, loadOrRandom(new File(directory, "long.crt"), 998));
+        putFile(0x0132, loadOrRandom(new File(directory, "short.crt"), 575));
+    }
+
+    private static byte[] loadOrRandom(File file, int size) {
+        try {
+            return Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            byte[] content = new byte[size];
+            new Random(size).nextBytes(content);
+            return content;
+        }
+    }
+
+    @Override
+    public IResponseAPDU transmit(ICommandAPDU command) throws CardException {
+        if (apduDelayMillis > 0) {
+            try {
+                Thread.sleep(apduDelayMillis);
+            } catch (InterruptedException e) {
+                throw new CardException(e);
+            }
+        }
+        byte[] response = process(command.getData());
+        if (byteDelayNanos > 0) {
+            LockSupport.parkNanos(byteDelayNanos * (command.getData().length + response.length));
+        }
+        return createResponse(response);
+    }
+
+    protected byte[] process(byte[] apdu) {
+        if (apdu.length < 4) {
+            return sw(0x6700);
+        }
+        int ins = HexUtils.byteToInt(apdu[1]);
+        switch (ins) {
+            case 0xA4: //SELECT
+                return select(apdu);
+            case 0xB0: //READ BINARY
+                return readBinary(apdu);
+            case 0xCA: //GET DATA
+                return getData(apdu);
+            case 0x70: //MANAGE CHANNEL
+                return manageChannel(apdu);
+            default:
+                return sw(0x6D00);
+        }
+    }
+
+    private byte[] manageChannel(byte[] apdu) {
+        if (openChannels.length <= 1) {
+            return sw(0x6881);
+        }
+        if (apdu[2] == (byte) 0x80) {
+            int channel = HexUtils.byteToInt(apdu[3]);
+            if (channel == 0 || channel >= openChannels.length || !openChannels[channel]) {
+                return sw(0x6A81);
+            }
+            openChannels[channel] = false;
+            return sw(0x9000);
+        }
+        for (int channel = 1; channel < openChannels.length; channel++) {
+            if (!openChannels[channel]) {
+                openChannels[channel] = true;
+                return new byte[]{(byte) channel, (byte) 0x90, 0x00};
+            }
+        }
+        return sw(0x6A81);
+    }
+
+    private byte[] getData(byte[] apdu) {
+        if (!applicationSelected) {
+            return sw(0x6D00);
+        }
+        byte[] value = tags.get(HexUtils.byteToInt(apdu[3]));
+        if (value == null) {
+            return sw(0x6A88);
+        }
+        int le = apdu.length > 4 ? HexUtils.byteToInt(apdu[apdu.length - 1]) : 0;
+        if (strictLe && le != value.length) {
+            return sw(0x6C00 | value.length);
+        }
+        return HexUtils.concatArrays(value, sw(0x9000));
+    }
+
+    private byte[] select(byte[] apdu) {
+        if (apdu[2] != 0x08) {
+            selectedFile = null;
+            applicationSelected = true;
+            return sw(0x9000);
+        }
+        int fileId = HexUtils.byteToInt(apdu[5]) << 8 | HexUtils.byteToInt(apdu[6]);
+        selectedFile = files.get(fileId);
+        if (selectedFile == null) {
+            return sw(0x6A82);
+        }
+        byte[] fcp = new byte[]{
+                0x62, 0x0B,
+                (byte) 0x80, 0x02, (byte) (selectedFile.length >> 8), (byte) selectedFile.length,
+                (byte) 0x82, 0x01, 0x01,
+                (byte) 0x83, 0x02, apdu[5], apdu[6]
+        };
+        return HexUtils.concatArrays(fcp, sw(0x9000));
+    }
+
+    private byte[] readBinary(byte[] apdu) {
+        if (selectedFile == null) {
+            return sw(0x6986);
+        }
+        int offset = HexUtils.byteToInt(apdu[2]) << 8 | HexUtils.byteToInt(apdu[3]);
+        if (offset >= selectedFile.length) {
+            return sw(0x6B00);
+        }
+        int le;
+        if (apdu.length == 7 && apdu[4] == 0) {
+            if (!extendedLength) {
+                return sw(0x6700);
+            }
+            le = HexUtils.byteToInt(apdu[5]) << 8 | HexUtils.byteToInt(apdu[6]);
+            if (le == 0) {
+                le = 65536;
+            }
+        } else {
+            le = apdu.length > 4 ? HexUtils.byteToInt(apdu[4]) : 0;
+            if (le == 0) {
+                le = 256;
+            }
+            if (le > maxShortLe) {
+                return sw(0x6700);
+            }
+        }
+        int count = Math.min(le, selectedFile.length - offset);
+        return HexUtils.concatArrays(Arrays.copyOfRange(selectedFile, offset, offset + count), sw(0x9000));
+    }
+
+    protected static byte[] sw(int sw) {
+        return new byte[]{(byte) (sw >> 8), (byte) sw};
+    }
+
+    protected static IResponseAPDU createResponse(final byte[] fullResponse) {
+        final byte[] data = new byte[fullResponse.length - 2];
+        System.arraycopy(fullResponse, 0, data, 0, data.length);
+        final int sw1 = fullResponse[fullResponse.length - 2] & 0xFF;
+        final int sw2 = fullResponse[fullResponse.length - 1] & 0xFF;
+        final int sw = sw1 << 8 | sw2;
+
+        return new IResponseAPDU() {
+            @Override
+            public byte[] getBytes() {
+                return fullResponse;
+            }
+
+            @Override
+            public byte[] getData() {
+                return data;
+            }
+
+            @Override
+            public int getSW() {
+                return sw;
+            }
+
+            @Override
+            public int getSW1() {
+                return sw1;
+            }
+
+            @Override
+            public int getSW2() {
+                return sw2;
+            }
+        };
+    }
+
+    @Override
+    public ICommandAPDU createCommand(final byte[] commandData) {
+        return new ICommandAPDU() {
+            @Override
+            public byte[] getData() {
+                return commandData;
+            }
+        };
+    }
+
+    @Override
+    public byte[] getATR() {
+        return atr;
+    }
+
+    @Override
+    public boolean isExtendedLengthSupported() {
+        return true; //card itself answers extended READ BINARY only when enabled by setExtendedLength()
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.desktop.app.benchmark;
+
+import cz.paralelnipolis.obcanka.core.card.Card;
+import cz.paralelnipolis.obcanka.core.card.CardSnapshot;
+import cz.paralelnipolis.obcanka.core.card.LeCache;
+import cz.paralelnipolis.obcanka.core.communication.CardException;
+
+/**
+ * Compares APDU count and wall time of the per-getter path with Card.readSnapshot() on a simulated reader.
+ * Usage: SnapshotBenchmark [iterations] [apduDelayMillis]
+ */
+public class SnapshotBenchmark {
+    public static void main(String[] args) throws CardException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        long apduDelayMillis = args.length > 1 ? Long.parseLong(args[1]) : 5;
+
+        for (boolean strictLe : new boolean[]{false, true}) {
+            System.out.println("== Card answers 6Cxx to wrong Le: " + strictLe + " ==");
+            run("getters", iterations, apduDelayMillis, strictLe, false, false);
+            run("getters, learn Le", iterations, apduDelayMillis, strictLe, false, true);
+            run("snapshot", iterations, apduDelayMillis, strictLe, true, false);
+            run("snapshot, learn Le", iterations, apduDelayMillis, strictLe, true, true);
+        }
+    }
+
+    private static void run(String name, int iterations, long apduDelayMillis, boolean strictLe, boolean snapshot, boolean learnLe) throws CardException {
+        LeCache sharedLeCache = new LeCache();
+        long apdus = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            CountingCardInterface ci = new CountingCardInterface(new SimulatedCardInterface(apduDelayMillis, strictLe));
+            Card card = new Card(ci, learnLe ? sharedLeCache : new LeCache());
+            if (snapshot) {
+                CardSnapshot s = card.readSnapshot();
+                if (s == null) {
+                    throw new CardException("Snapshot failed.");
+                }
+            } else {
+                readWithGetters(card);
+            }
+            apdus += ci.getApduCount();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%-18s", name) + ": " + (apdus / (double) iterations) + " APDUs/read, "
+                + String.format("%.2f", elapsed / 1e6 / iterations) + " ms/read"
+                + (learnLe ? ", avoided Le retries: " + sharedLeCache.getAvoidedRetries() : ""));
+    }
+
+    private static void readWithGetters(Card card) throws CardException {
+        card.getCardNumber();
+        card.getSerialNumber();
+        card.getDokState();
+        card.getDokTryLimit();
+        card.getDokMaxTryLimit();
+        card.getIokState();
+        card.getIokTryLimit();
+        card.getIokMaxTryLimit();
+    }
+}
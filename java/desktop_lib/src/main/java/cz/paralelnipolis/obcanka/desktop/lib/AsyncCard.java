@@ -0,0 +1,311 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.desktop.lib;
+
+import cz.paralelnipolis.obcanka.core.card.Card;
+import cz.paralelnipolis.obcanka.core.card.CardSnapshot;
+import cz.paralelnipolis.obcanka.core.card.enums.CardAuthorizationResult;
+import cz.paralelnipolis.obcanka.core.card.enums.DokState;
+import cz.paralelnipolis.obcanka.core.card.enums.IokState;
+import cz.paralelnipolis.obcanka.core.card.enums.PINType;
+import cz.paralelnipolis.obcanka.core.certificates.Certificate;
+import cz.paralelnipolis.obcanka.core.communication.CardException;
+import cz.paralelnipolis.obcanka.core.encryption.EncryptionToken;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non blocking facade of {@link Card}. Every operation is queued on a single threaded executor, so the card
+ * gets commands strictly one after another while callers compose the returned futures. Failed operations complete
+ * the future exceptionally with the CardException.
+ * <p>
+ * Card is created by given factory on the reader thread before the first task, because exclusive access to
+ * a javax.smartcardio card belongs to the thread which began it. When the factory fails, the task fails with its
+ * exception and the next task tries again. Several AsyncCards sharing one reader have to share one executor too,
+ * see {@link #newReaderExecutor(String)}.
+ * <p>
+ * Lives in desktop library as CompletableFuture is not available on older Android versions supported by core.
+ */
+public class AsyncCard {
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    /**
+     * Operation executed on the reader thread.
+     */
+    public interface CardTask<T> {
+        T run(Card card) throws CardException;
+    }
+
+    /**
+     * Connects the card, called on the reader thread.
+     */
+    public interface CardFactory {
+        Card create() throws CardException;
+    }
+
+    private final CardFactory cardFactory;
+    private final ExecutorService executor;
+    private final boolean ownExecutor;
+    private Card card; //used only on the reader thread
+
+    public AsyncCard(CardFactory cardFactory) {
+        this(cardFactory, newReaderExecutor("card"), true);
+    }
+
+    public AsyncCard(CardFactory cardFactory, ExecutorService readerExecutor) {
+        this(cardFactory, readerExecutor, false);
+    }
+
+    private AsyncCard(CardFactory cardFactory, ExecutorService executor, boolean ownExecutor) {
+        this.cardFactory = cardFactory;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+    }
+
+    /**
+     * @return single threaded executor with daemon thread named after the reader
+     */
+    public static ExecutorService newReaderExecutor(final String readerName) {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "obcanka-" + readerName + "-" + threadCounter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Queues any sequence of Card calls, they are executed without commands of other tasks in between.
+     */
+    public <T> CompletableFuture<T> submit(final CardTask<T> task) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (result.isCancelled()) {
+                    return;
+                }
+                try {
+                    if (card == null) {
+                        card = cardFactory.create();
+                    }
+                    result.complete(task.run(card));
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+        return result;
+    }
+
+    public CompletableFuture<Boolean> selectApplication(final byte[] appId) {
+        return submit(new CardTask<Boolean>() {
+            @Override
+            public Boolean run(Card card) throws CardException {
+                return card.selectApplication(appId);
+            }
+        });
+    }
+
+    public CompletableFuture<String> getCardNumber() {
+        return submit(new CardTask<String>() {
+            @Override
+            public String run(Card card) throws CardException {
+                return card.getCardNumber();
+            }
+        });
+    }
+
+    public CompletableFuture<byte[]> getSerialNumber() {
+        return submit(new CardTask<byte[]>() {
+            @Override
+            public byte[] run(Card card) throws CardException {
+                return card.getSerialNumber();
+            }
+        });
+    }
+
+    public CompletableFuture<byte[]> getKeyChecksumValue() {
+        return submit(new CardTask<byte[]>() {
+            @Override
+            public byte[] run(Card card) throws CardException {
+                return card.getKeyChecksumValue();
+            }
+        });
+    }
+
+    public CompletableFuture<byte[]> getData(final int tagId, final int authId) {
+        return submit(new CardTask<byte[]>() {
+            @Override
+            public byte[] run(Card card) throws CardException {
+                return card.getData(tagId, authId);
+            }
+        });
+    }
+
+    public CompletableFuture<DokState> getDokState() {
+        return submit(new CardTask<DokState>() {
+            @Override
+            public DokState run(Card card) throws CardException {
+                return card.getDokState();
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> getDokTryLimit() {
+        return submit(new CardTask<Integer>() {
+            @Override
+            public Integer run(Card card) throws CardException {
+                return card.getDokTryLimit();
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> getDokMaxTryLimit() {
+        return submit(new CardTask<Integer>() {
+            @Override
+            public Integer run(Card card) throws CardException {
+                return card.getDokMaxTryLimit();
+            }
+        });
+    }
+
+    public CompletableFuture<IokState> getIokState() {
+        return submit(new CardTask<IokState>() {
+            @Override
+            public IokState run(Card card) throws CardException {
+                return card.getIokState();
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> getIokTryLimit() {
+        return submit(new CardTask<Integer>() {
+            @Override
+            public Integer run(Card card) throws CardException {
+                return card.getIokTryLimit();
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> getIokMaxTryLimit() {
+        return submit(new CardTask<Integer>() {
+            @Override
+            public Integer run(Card card) throws CardException {
+                return card.getIokMaxTryLimit();
+            }
+        });
+    }
+
+    public CompletableFuture<CardSnapshot> readSnapshot() {
+        return submit(new CardTask<CardSnapshot>() {
+            @Override
+            public CardSnapshot run(Card card) throws CardException {
+                return card.readSnapshot();
+            }
+        });
+    }
+
+    public CompletableFuture<CardAuthorizationResult> changePIN(final PINType pinType, final String oldPIN, final String newPIN) {
+        return submit(new CardTask<CardAuthorizationResult>() {
+            @Override
+            public CardAuthorizationResult run(Card card) throws CardException {
+                return card.changePIN(pinType, oldPIN, newPIN);
+            }
+        });
+    }
+
+    public CompletableFuture<CardAuthorizationResult> unblockIOK(final String dokPIN, final String newIOKPIN) {
+        return submit(new CardTask<CardAuthorizationResult>() {
+            @Override
+            public CardAuthorizationResult run(Card card) throws CardException {
+                return card.unblockIOK(dokPIN, newIOKPIN);
+            }
+        });
+    }
+
+    public CompletableFuture<Certificate> getCertificate(final Certificate.CertificateType type) {
+        return submit(new CardTask<Certificate>() {
+            @Override
+            public Certificate run(Card card) throws CardException {
+                return card.getCertificate(type);
+            }
+        });
+    }
+
+    /**
+     * File content is returned as soon as it is read, so it can be parsed while the reader works on next task.
+     */
+    public CompletableFuture<byte[]> readFile(final int fileId) {
+        return submit(new CardTask<byte[]>() {
+            @Override
+            public byte[] run(Card card) throws CardException {
+                return card.readFile(fileId);
+            }
+        });
+    }
+
+    /**
+     * Reads file into given buffer, which must not be touched until the future completes.
+     * @return future of number of bytes read or -1 if file doesn't exist
+     */
+    public CompletableFuture<Integer> readFile(final int fileId, final ByteBuffer dst) {
+        return submit(new CardTask<Integer>() {
+            @Override
+            public Integer run(Card card) throws CardException {
+                return card.readFile(fileId, dst);
+            }
+        });
+    }
+
+    /**
+     * Certificates are parsed on the parser thread of Card, the reader thread is blocked until both are parsed.
+     */
+    public CompletableFuture<Map<Certificate.CertificateType, Certificate>> readAllCertificates() {
+        return submit(new CardTask<Map<Certificate.CertificateType, Certificate>>() {
+            @Override
+            public Map<Certificate.CertificateType, Certificate> run(Card card) throws CardException {
+                return card.readAllCertificates();
+            }
+        });
+    }
+
+    public CompletableFuture<EncryptionToken> createEncryptionToken() {
+        return submit(new CardTask<EncryptionToken>() {
+            @Override
+            public EncryptionToken run(Card card) throws CardException {
+                return card.createEncryptionToken();
+            }
+        });
+    }
+
+    /**
+     * Stops the executor when it was created by this AsyncCard. Already queued tasks are still executed.
+     */
+    public void close() {
+        if (ownExecutor) {
+            executor.shutdown();
+        }
+    }
+}
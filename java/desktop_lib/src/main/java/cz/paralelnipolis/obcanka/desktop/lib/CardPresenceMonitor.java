@@ -0,0 +1,231 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.desktop.lib;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.TerminalFactory;
+import java.io.Closeable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Watches all terminals from one background thread blocked in {@link CardTerminals#waitForChange(long)}, so
+ * insertion is noticed as soon as PC/SC reports it. Inserted card is connected and its ATR read right away and
+ * listeners get the ready interface.
+ * <p>
+ * Interfaces stay owned by the monitor: they are disconnected when the card is removed or the monitor closed,
+ * callers must not destroy them. Cards are connected without exclusive access, because JDK binds it to the thread
+ * which began it, so any thread can transmit. A thread which needs the card for itself calls
+ * {@link DesktopCardInterface#beginExclusive()} and {@link DesktopCardInterface#endExclusive()}.
+ * Listeners are called on the watcher thread and should return quickly, runtime exceptions they throw are printed
+ * and don't stop the watcher.
+ */
+public class CardPresenceMonitor implements Closeable {
+    private static final long WAIT_MILLIS = 5000;
+    private static final long NO_READERS_RETRY_MILLIS = 1000;
+
+    public interface Listener {
+        void cardInserted(CardTerminal terminal, DesktopCardInterface cardInterface);
+
+        void cardRemoved(CardTerminal terminal);
+    }
+
+    private final CardTerminals terminals;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Map<String, DesktopCardInterface> cards = new LinkedHashMap<>();
+    private final Map<String, CardTerminal> cardTerminals = new LinkedHashMap<>();
+    private final Thread watcher;
+    private volatile boolean closed;
+
+    public CardPresenceMonitor() {
+        this(TerminalFactory.getDefault().terminals());
+    }
+
+    public CardPresenceMonitor(CardTerminals terminals) {
+        this.terminals = terminals;
+        watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "obcanka-card-presence");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Adds listener and tells it about cards connected so far.
+     */
+    public void addListener(Listener listener) {
+        Map<String, DesktopCardInterface> connected;
+        Map<String, CardTerminal> connectedTerminals;
+        synchronized (this) {
+            listeners.add(listener);
+            connected = new LinkedHashMap<>(cards);
+            connectedTerminals = new LinkedHashMap<>(cardTerminals);
+        }
+        for (Map.Entry<String, DesktopCardInterface> entry : connected.entrySet()) {
+            notifyInserted(listener, connectedTerminals.get(entry.getKey()), entry.getValue());
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return connected cards by reader name
+     */
+    public synchronized Map<String, DesktopCardInterface> getCards() {
+        return new LinkedHashMap<>(cards);
+    }
+
+    /**
+     * Waits for any connected card.
+     * @param timeoutMillis maximum wait, 0 waits until a card is inserted or the monitor closed
+     * @return first connected card or null
+     */
+    public synchronized DesktopCardInterface waitForCard(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (cards.isEmpty() && !closed) {
+            if (timeoutMillis == 0) {
+                wait();
+            } else {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                wait(remaining);
+            }
+        }
+        return cards.isEmpty() ? null : cards.values().iterator().next();
+    }
+
+    private void watch() {
+        boolean scanned = false;
+        try {
+            while (!closed) {
+                try {
+                    if (!scanned) {
+                        for (CardTerminal terminal : terminals.list(CardTerminals.State.CARD_PRESENT)) {
+                            inserted(terminal);
+                        }
+                        scanned = true;
+                    }
+                    if (!terminals.waitForChange(WAIT_MILLIS)) {
+                        continue;
+                    }
+                    //removal first, quickly swapped card is in both lists
+                    for (CardTerminal terminal : terminals.list(CardTerminals.State.CARD_REMOVAL)) {
+                        removed(terminal);
+                    }
+                    for (CardTerminal terminal : terminals.list(CardTerminals.State.CARD_INSERTION)) {
+                        inserted(terminal);
+                    }
+                } catch (CardException e) {
+                    //no readers attached yet or PC/SC restarted
+                    Thread.sleep(NO_READERS_RETRY_MILLIS);
+                }
+            }
+        } catch (InterruptedException e) {
+            //monitor closed
+        } finally {
+            disconnectAll();
+        }
+    }
+
+    private void inserted(CardTerminal terminal) {
+        synchronized (this) {
+            if (cards.containsKey(terminal.getName())) {
+                return; //already connected by the initial scan
+            }
+        }
+        DesktopCardInterface cardInterface;
+        try {
+            cardInterface = DesktopCardInterface.create(terminal, false);
+        } catch (CardException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (cardInterface == null) {
+            return;
+        }
+        synchronized (this) {
+            cards.put(terminal.getName(), cardInterface);
+            cardTerminals.put(terminal.getName(), terminal);
+            notifyAll();
+        }
+        for (Listener listener : listeners) {
+            notifyInserted(listener, terminal, cardInterface);
+        }
+    }
+
+    private void removed(CardTerminal terminal) {
+        DesktopCardInterface cardInterface;
+        synchronized (this) {
+            cardInterface = cards.remove(terminal.getName());
+            cardTerminals.remove(terminal.getName());
+        }
+        if (cardInterface == null) {
+            return;
+        }
+        cardInterface.destroy();
+        for (Listener listener : listeners) {
+            try {
+                listener.cardRemoved(terminal);
+            } catch (RuntimeException e) {
+                e.printStackTrace(); //failing listener must not stop the watcher nor other listeners
+            }
+        }
+    }
+
+    private static void notifyInserted(Listener listener, CardTerminal terminal, DesktopCardInterface cardInterface) {
+        try {
+            listener.cardInserted(terminal, cardInterface);
+        } catch (RuntimeException e) {
+            e.printStackTrace(); //failing listener must not stop the watcher nor other listeners
+        }
+    }
+
+    private void disconnectAll() {
+        Map<String, DesktopCardInterface> connected;
+        synchronized (this) {
+            connected = new LinkedHashMap<>(cards);
+            cards.clear();
+            cardTerminals.clear();
+            notifyAll();
+        }
+        for (DesktopCardInterface cardInterface : connected.values()) {
+            cardInterface.destroy();
+        }
+    }
+
+    /**
+     * Stops watching and disconnects all cards.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        watcher.interrupt();
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+}
@@ -15,18 +15,31 @@
  */
 package cz.paralelnipolis.obcanka.desktop.lib;
 
+import cz.paralelnipolis.obcanka.core.card.CardProfile;
+import cz.paralelnipolis.obcanka.core.card.CardProfileRegistry;
+import cz.paralelnipolis.obcanka.core.communication.BufferResponseAPDU;
 import cz.paralelnipolis.obcanka.core.communication.CardException;
 import cz.paralelnipolis.obcanka.core.communication.ICardInterface;
 import cz.paralelnipolis.obcanka.core.communication.ICommandAPDU;
 import cz.paralelnipolis.obcanka.core.communication.IResponseAPDU;
 
 import javax.smartcardio.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class DesktopCardInterface implements ICardInterface {
+    private static final int MAX_RESPONSE_SIZE = 65538; //extended Le data and SW
+    private static final long WAIT_FOR_CARD_MILLIS = 1000;
     private Card card;
     private CardChannel channel;
     private byte[] atr;
+    private final Map<Integer, CardChannel> logicalChannels = new HashMap<>();
+    private ByteBuffer responseBuffer; //reused by all batches
+    private Thread exclusiveThread;
+    private boolean destroyed;
 
     private DesktopCardInterface(Card card, CardChannel channel,byte[] atr) {
         this.card = card;
@@ -55,7 +68,11 @@ public class DesktopCardInterface implements ICardInterface {
             if (terminalsWithCard.isEmpty()) {
                 System.out.println("Waiting for card to be inserted...");
                 while (terminalsWithCard.isEmpty()) {
-                    terminals.waitForChange(1000);
+                    if (Thread.currentThread().isInterrupted()) {
+                        return null;
+                    }
+                    //wakes up now and then to notice interrupt, see also CardPresenceMonitor
+                    terminals.waitForChange(WAIT_FOR_CARD_MILLIS);
                     terminalsWithCard = terminals.list(CardTerminals.State.CARD_PRESENT);
                 }
             }
@@ -73,32 +90,119 @@ public class DesktopCardInterface implements ICardInterface {
     public static DesktopCardInterface create() {
         try {
             CardTerminal terminal = getCardTerminalWithCard();
-            return create(terminal.connect("T=0"));
+            return create(terminal);
         } catch (javax.smartcardio.CardException e) {
             e.printStackTrace();
         }
         return null;
     }
-    public static DesktopCardInterface create(Card card) {
-        try {
-            ATR atr = card.getATR();
-            card.beginExclusive();
-            return new DesktopCardInterface(card,card.getBasicChannel(),atr.getHistoricalBytes());
-        } catch (javax.smartcardio.CardException e) {
-            e.printStackTrace();
+
+    /**
+     * Connects to card in given terminal with exclusive access of the calling thread, see {@link #create(CardTerminal, boolean)}.
+     */
+    public static DesktopCardInterface create(CardTerminal terminal) throws javax.smartcardio.CardException {
+        return create(terminal, true);
+    }
+
+    /**
+     * Connects to card in given terminal with any protocol the card and reader agree on. ATR is known only after
+     * connecting, so the card is connected again (and reset) only when its profile forces other protocol.
+     * @param exclusive true to begin exclusive access on the calling thread, JDK then refuses commands from other threads
+     * @throws IllegalStateException when the card profiles file is malformed
+     */
+    public static DesktopCardInterface create(CardTerminal terminal, boolean exclusive) throws javax.smartcardio.CardException {
+        Card card = terminal.connect("*");
+        CardProfile profile = CardProfileRegistry.getDefault().find(card.getATR().getBytes());
+        if (profile != null && profile.getProtocol() != null && !profile.getProtocol().equals(card.getProtocol())) {
+            //card generation is known to work better with other protocol
+            card.disconnect(false);
+            card = terminal.connect(profile.getProtocol());
         }
-        return null;
+        return create(card, exclusive);
     }
 
-    public void destroy (){
-        if (card != null) {
+    public static DesktopCardInterface create(Card card) {
+        return create(card, true);
+    }
+
+    /**
+     * @param exclusive true to begin exclusive access on the calling thread
+     */
+    public static DesktopCardInterface create(Card card, boolean exclusive) {
+        ATR atr = card.getATR();
+        DesktopCardInterface cardInterface = new DesktopCardInterface(card,card.getBasicChannel(),atr.getHistoricalBytes());
+        if (exclusive) {
             try {
-                card.endExclusive();
-                card.disconnect(true);
-            } catch (javax.smartcardio.CardException e) {
+                cardInterface.beginExclusive();
+            } catch (CardException e) {
                 e.printStackTrace();
+                return null;
             }
         }
+        return cardInterface;
+    }
+
+    /**
+     * Keeps other threads and applications away from the card until {@link #endExclusive()} is called
+     * on the same thread. JDK binds exclusive access to the thread which began it.
+     */
+    public synchronized void beginExclusive() throws CardException {
+        if (exclusiveThread == Thread.currentThread()) {
+            return;
+        }
+        try {
+            card.beginExclusive();
+        } catch (javax.smartcardio.CardException | IllegalStateException e) {
+            throw new CardException(e); //held by another thread, card removed or disconnected
+        }
+        exclusiveThread = Thread.currentThread();
+    }
+
+    /**
+     * Ends exclusive access begun by the calling thread, nothing happens when there is none.
+     * Card destroyed meanwhile is disconnected now.
+     * @throws IllegalStateException when exclusive access belongs to another thread
+     */
+    public synchronized void endExclusive() {
+        if (exclusiveThread == null) {
+            return;
+        }
+        if (exclusiveThread != Thread.currentThread()) {
+            throw new IllegalStateException("Exclusive access belongs to " + exclusiveThread.getName() + ".");
+        }
+        exclusiveThread = null;
+        try {
+            card.endExclusive();
+        } catch (javax.smartcardio.CardException | IllegalStateException e) {
+            //card was removed, there is nothing to release
+        }
+        if (destroyed) {
+            disconnect();
+        }
+    }
+
+    /**
+     * Disconnects the card. When another thread holds exclusive access, JDK refuses to disconnect,
+     * so the card is disconnected once that thread ends it.
+     */
+    public synchronized void destroy (){
+        if (card == null || destroyed) {
+            return;
+        }
+        destroyed = true;
+        if (exclusiveThread == Thread.currentThread()) {
+            endExclusive();
+        } else if (exclusiveThread == null) {
+            disconnect();
+        }
+    }
+
+    private void disconnect() {
+        try {
+            card.disconnect(true);
+        } catch (javax.smartcardio.CardException | IllegalStateException e) {
+            e.printStackTrace();
+        }
     }
 
     @Override
@@ -106,40 +210,98 @@ public class DesktopCardInterface implements ICardInterface {
         return atr;
     }
 
+    /**
+     * JDK refuses extended length APDUs for T=0 before they reach the reader.
+     */
     @Override
-    public IResponseAPDU transmit(ICommandAPDU command) throws CardException {
-        final ResponseAPDU r;
+    public boolean isExtendedLengthSupported() {
+        return CardProfile.PROTOCOL_T1.equals(card.getProtocol());
+    }
+
+    /**
+     * Basic channel refuses MANAGE CHANNEL, so channels are opened by {@link Card#openLogicalChannel()}.
+     */
+    @Override
+    public int openLogicalChannel() throws CardException {
+        try {
+            CardChannel logicalChannel = card.openLogicalChannel();
+            logicalChannels.put(logicalChannel.getChannelNumber(), logicalChannel);
+            return logicalChannel.getChannelNumber();
+        } catch (javax.smartcardio.CardException | UnsupportedOperationException e) {
+            //JDK doesn't tell whether the card is out of free channels or doesn't support them
+            return -1;
+        }
+    }
+
+    @Override
+    public void closeLogicalChannel(int channelNumber) throws CardException {
+        CardChannel logicalChannel = logicalChannels.remove(channelNumber);
+        if (logicalChannel == null) {
+            return;
+        }
         try {
-            r = channel.transmit(new CommandAPDU(command.getData()));
+            logicalChannel.close();
         } catch (javax.smartcardio.CardException e) {
             throw new CardException(e);
         }
-        return new IResponseAPDU() {
-            @Override
-            public byte[] getBytes() {
-                return r.getBytes();
-            }
-
-            @Override
-            public byte[] getData() {
-                return r.getData();
-            }
+    }
 
-            @Override
-            public int getSW() {
-                return r.getSW();
-            }
+    /**
+     * JDK channel overwrites logical channel bits in CLA with its own number, so the command is sent through
+     * the channel encoded in its CLA (see Card.setChannel).
+     */
+    private CardChannel getChannel(byte[] command) {
+        if (logicalChannels.isEmpty()) {
+            return channel;
+        }
+        int cla = command[0] & 0xFF;
+        int channelNumber = (cla & 0x40) == 0 ? cla & 0x03 : (cla & 0x0F) + 4;
+        CardChannel logicalChannel = logicalChannels.get(channelNumber);
+        return logicalChannel != null ? logicalChannel : channel;
+    }
 
-            @Override
-            public int getSW1() {
-                return r.getSW1();
-            }
+    @Override
+    public IResponseAPDU transmit(ICommandAPDU command) throws CardException {
+        byte[] data = command.getData();
+        try {
+            //ResponseAPDU copies the response on every getter, so it is copied once here
+            return BufferResponseAPDU.wrap(getChannel(data).transmit(new CommandAPDU(data)).getBytes());
+        } catch (javax.smartcardio.CardException e) {
+            throw new CardException(e);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            //JDK refuses some commands before they reach the card (MANAGE CHANNEL, extended APDU over T=0)
+            //or the channel was closed
+            throw new CardException(e);
+        }
+    }
 
-            @Override
-            public int getSW2() {
-                return r.getSW2();
+    /**
+     * Sends commands through {@link CardChannel#transmit(ByteBuffer, ByteBuffer)} with response buffer shared
+     * by all batches, so no CommandAPDU is parsed and validated per command and every response is copied once.
+     * Commands still take one round trip each, PC/SC has no way to send more of them at once.
+     */
+    @Override
+    public synchronized List<IResponseAPDU> transmitBatch(List<ICommandAPDU> commands) throws CardException {
+        List<IResponseAPDU> responses = new ArrayList<>(commands.size());
+        if (responseBuffer == null) {
+            responseBuffer = ByteBuffer.allocate(MAX_RESPONSE_SIZE);
+        }
+        ByteBuffer response = responseBuffer;
+        try {
+            for (ICommandAPDU command : commands) {
+                response.clear();
+                int length = getChannel(command.getData()).transmit(command.getBuffer(), response);
+                byte[] bytes = new byte[length];
+                response.flip();
+                response.get(bytes);
+                responses.add(BufferResponseAPDU.wrap(bytes));
             }
-        };
+        } catch (javax.smartcardio.CardException e) {
+            throw new CardException(e);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            throw new CardException(e);
+        }
+        return responses;
     }
 
     @Override
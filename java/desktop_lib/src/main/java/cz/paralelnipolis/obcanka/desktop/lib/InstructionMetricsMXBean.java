@@ -0,0 +1,47 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.desktop.lib;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link cz.paralelnipolis.obcanka.core.metrics.InstructionMetrics}.
+ */
+public interface InstructionMetricsMXBean {
+    String getInstruction();
+
+    long getCount();
+
+    long getErrors();
+
+    double getMeanMicros();
+
+    long getP50Micros();
+
+    long getP90Micros();
+
+    long getP99Micros();
+
+    long getP999Micros();
+
+    long getMaxMicros();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    Map<String, Long> getStatusWords();
+}
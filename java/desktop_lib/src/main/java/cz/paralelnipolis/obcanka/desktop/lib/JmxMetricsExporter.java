@@ -0,0 +1,166 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.desktop.lib;
+
+import cz.paralelnipolis.obcanka.core.metrics.InstructionMetrics;
+import cz.paralelnipolis.obcanka.core.metrics.InstrumentedCardInterface;
+import cz.paralelnipolis.obcanka.core.metrics.MetricsExporter;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registers metrics of every instruction as MBean named
+ * <pre>
+ * cz.paralelnipolis.obcanka:type=CardInterface,name="reader name",instruction="GET DATA"
+ * </pre>
+ * so they can be watched in JConsole or collected by any JMX agent. Values are read from the live metrics
+ * on every attribute access.
+ */
+public class JmxMetricsExporter implements MetricsExporter, Closeable {
+    public static final String DOMAIN = "cz.paralelnipolis.obcanka";
+
+    private final MBeanServer server;
+    private final List<ObjectName> registered = new CopyOnWriteArrayList<>();
+
+    public JmxMetricsExporter() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    public JmxMetricsExporter(MBeanServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Creates exporter for the platform MBean server and adds it to the card interface.
+     */
+    public static JmxMetricsExporter register(InstrumentedCardInterface cardInterface) {
+        JmxMetricsExporter exporter = new JmxMetricsExporter();
+        cardInterface.addExporter(exporter);
+        return exporter;
+    }
+
+    @Override
+    public void instructionAdded(InstrumentedCardInterface source, InstructionMetrics metrics) {
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=CardInterface,name=" + ObjectName.quote(source.getName())
+                    + ",instruction=" + ObjectName.quote(metrics.getName()));
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(new InstructionMetricsView(metrics), objectName);
+                registered.add(objectName);
+            }
+        } catch (InstanceAlreadyExistsException e) {
+            //registered concurrently for the same instruction
+        } catch (MalformedObjectNameException | MBeanRegistrationException | NotCompliantMBeanException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Unregisters all MBeans registered by this exporter.
+     */
+    @Override
+    public void close() {
+        for (ObjectName objectName : registered) {
+            try {
+                server.unregisterMBean(objectName);
+            } catch (InstanceNotFoundException e) {
+                //already unregistered
+            } catch (MBeanRegistrationException e) {
+                e.printStackTrace();
+            }
+        }
+        registered.clear();
+    }
+
+    private static class InstructionMetricsView implements InstructionMetricsMXBean {
+        private final InstructionMetrics metrics;
+
+        InstructionMetricsView(InstructionMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public String getInstruction() {
+            return metrics.getName();
+        }
+
+        @Override
+        public long getCount() {
+            return metrics.getLatency().getCount();
+        }
+
+        @Override
+        public long getErrors() {
+            return metrics.getErrors();
+        }
+
+        @Override
+        public double getMeanMicros() {
+            return metrics.getLatency().getMeanMicros();
+        }
+
+        @Override
+        public long getP50Micros() {
+            return metrics.getLatency().getPercentileMicros(50);
+        }
+
+        @Override
+        public long getP90Micros() {
+            return metrics.getLatency().getPercentileMicros(90);
+        }
+
+        @Override
+        public long getP99Micros() {
+            return metrics.getLatency().getPercentileMicros(99);
+        }
+
+        @Override
+        public long getP999Micros() {
+            return metrics.getLatency().getPercentileMicros(99.9);
+        }
+
+        @Override
+        public long getMaxMicros() {
+            return metrics.getLatency().getMaxMicros();
+        }
+
+        @Override
+        public long getBytesSent() {
+            return metrics.getBytesSent();
+        }
+
+        @Override
+        public long getBytesReceived() {
+            return metrics.getBytesReceived();
+        }
+
+        @Override
+        public Map<String, Long> getStatusWords() {
+            return metrics.getStatusWords();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.desktop.lib;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import cz.paralelnipolis.obcanka.core.HexUtils;
+import cz.paralelnipolis.obcanka.core.card.Card;
+import cz.paralelnipolis.obcanka.core.card.CardSnapshot;
+import cz.paralelnipolis.obcanka.core.communication.CardException;
+
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.TerminalFactory;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads DOK/IOK state and try limits from cards in all readers at once, one worker thread per reader.
+ * Every card produces one JSON line written as soon as the card is read, e.g.
+ * <pre>
+ * {"reader":"...","cardNumber":"...","serialNumber":"...","dokState":"Normal","dokTryLimit":3,...,"millis":120}
+ * </pre>
+ * Cards which couldn't be read produce line with "error" instead of the state.
+ */
+public class PinStateScanner {
+    private final Writer out;
+    private final Gson gson = new Gson();
+
+    public PinStateScanner(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * Scans all terminals with card present.
+     * @return number of written lines
+     */
+    public int scan() throws javax.smartcardio.CardException {
+        return scan(TerminalFactory.getDefault().terminals().list(CardTerminals.State.CARD_PRESENT));
+    }
+
+    /**
+     * @return number of written lines
+     */
+    public int scan(List<CardTerminal> terminals) {
+        if (terminals.isEmpty()) {
+            return 0;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(terminals.size());
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (final CardTerminal terminal : terminals) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        writeLine(scanTerminal(terminal));
+                        return null;
+                    }
+                }));
+            }
+            int lines = 0;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                    lines++;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+            return lines;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private JsonObject scanTerminal(CardTerminal terminal) {
+        JsonObject line = new JsonObject();
+        line.addProperty("reader", terminal.getName());
+        long start = System.currentTimeMillis();
+        DesktopCardInterface ci = null;
+        try {
+            ci = DesktopCardInterface.create(terminal);
+            if (ci == null) {
+                line.addProperty("error", "Couldn't connect to card.");
+            } else {
+                CardSnapshot snapshot = new Card(ci).readSnapshot();
+                if (snapshot == null) {
+                    line.addProperty("error", "Card management application not found.");
+                } else {
+                    line.addProperty("cardNumber", snapshot.getCardNumber());
+                    line.addProperty("serialNumber", snapshot.getSerialNumber() != null ? HexUtils.bytesToHexString(snapshot.getSerialNumber()) : null);
+                    line.addProperty("dokState", snapshot.getDokState().name());
+                    line.addProperty("dokTryLimit", snapshot.getDokTryLimit());
+                    line.addProperty("dokMaxTryLimit", snapshot.getDokMaxTryLimit());
+                    line.addProperty("iokState", snapshot.getIokState().name());
+                    line.addProperty("iokTryLimit", snapshot.getIokTryLimit());
+                    line.addProperty("iokMaxTryLimit", snapshot.getIokMaxTryLimit());
+                }
+            }
+        } catch (javax.smartcardio.CardException | CardException e) {
+            line.addProperty("error", e.getMessage() != null ? e.getMessage() : e.toString());
+        } finally {
+            if (ci != null) {
+                ci.destroy();
+            }
+        }
+        line.addProperty("millis", System.currentTimeMillis() - start);
+        return line;
+    }
+
+    private void writeLine(JsonObject line) throws IOException {
+        String json = gson.toJson(line);
+        synchronized (out) {
+            out.write(json);
+            out.write("\n");
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.desktop.lib;
+
+import cz.paralelnipolis.obcanka.core.communication.CardException;
+import cz.paralelnipolis.obcanka.core.communication.ICardInterface;
+
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.TerminalFactory;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives cards in all readers at once. Every reader has one worker thread which takes jobs from a shared queue
+ * whenever its reader has a card and is idle, so jobs (certificate download, authentication, ...) run on as many
+ * cards as there are, in the order they were submitted.
+ * <p>
+ * Cards are connected by {@link CardPresenceMonitor}, workers wait for its insertion and removal events instead of
+ * polling the readers. A card which fails during a job stays in use until the monitor reports its removal.
+ * <p>
+ * The queue is bounded: {@link #submit(Job)} blocks and {@link #trySubmit(Job, long, TimeUnit)} gives up when there
+ * are more waiting jobs than the capacity. Blocked submitters are served first come, first served.
+ * A reader can also be taken out of scheduling for a while by {@link #lease()}.
+ * <p>
+ * Jobs run with exclusive access to the card begun on the worker thread, a lease has it on the thread which took it.
+ */
+public class ReaderPool implements Closeable {
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    /**
+     * Work done with a card in one reader. The interface must not be used after run returns.
+     */
+    public interface Job<T> {
+        T run(ICardInterface cardInterface) throws Exception;
+    }
+
+    /**
+     * Reader reserved for the caller until it is closed. The card is exclusively accessible from the thread
+     * which took the lease, so the lease has to be closed on that thread too.
+     */
+    public static class Lease implements Closeable {
+        private final DesktopCardInterface cardInterface;
+        private final String readerName;
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        private Lease(DesktopCardInterface cardInterface, String readerName) {
+            this.cardInterface = cardInterface;
+            this.readerName = readerName;
+        }
+
+        public ICardInterface getCardInterface() {
+            return cardInterface;
+        }
+
+        public String getReaderName() {
+            return readerName;
+        }
+
+        /**
+         * Ends exclusive access and gives the reader back to the pool.
+         * @throws IllegalStateException when called on other thread than the one which took the lease
+         */
+        @Override
+        public void close() {
+            cardInterface.endExclusive();
+            closed.countDown();
+        }
+    }
+
+    private abstract static class QueuedJob {
+        abstract void run(DesktopCardInterface cardInterface, String readerName) throws Exception;
+
+        abstract void fail(Throwable t);
+
+        abstract boolean isDone();
+    }
+
+    private final Map<String, Worker> workers = new LinkedHashMap<>();
+    private final BlockingQueue<QueuedJob> queue;
+    private final CardPresenceMonitor monitor;
+    private final boolean ownMonitor;
+    private volatile boolean closed;
+
+    private final CardPresenceMonitor.Listener listener = new CardPresenceMonitor.Listener() {
+        @Override
+        public void cardInserted(CardTerminal terminal, DesktopCardInterface cardInterface) {
+            Worker worker = workers.get(terminal.getName());
+            if (worker != null) {
+                worker.cardInserted(cardInterface);
+            }
+        }
+
+        @Override
+        public void cardRemoved(CardTerminal terminal) {
+            Worker worker = workers.get(terminal.getName());
+            if (worker != null) {
+                worker.cardRemoved();
+            }
+        }
+    };
+
+    /**
+     * Pool of all readers known to PC/SC with its own presence monitor.
+     */
+    public static ReaderPool create() throws javax.smartcardio.CardException {
+        CardTerminals terminals = TerminalFactory.getDefault().terminals();
+        List<CardTerminal> readers = terminals.list();
+        if (readers.isEmpty()) {
+            throw new IllegalArgumentException("No readers to pool.");
+        }
+        return new ReaderPool(new CardPresenceMonitor(terminals), true, readers, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param monitor monitor of the terminals, it is not closed with the pool
+     * @param terminals readers to pool, cards in other readers reported by the monitor are not used
+     */
+    public ReaderPool(CardPresenceMonitor monitor, List<CardTerminal> terminals, int queueCapacity) {
+        this(monitor, false, terminals, queueCapacity);
+    }
+
+    private ReaderPool(CardPresenceMonitor monitor, boolean ownMonitor, List<CardTerminal> terminals, int queueCapacity) {
+        if (terminals.isEmpty()) {
+            throw new IllegalArgumentException("No readers to pool.");
+        }
+        this.monitor = monitor;
+        this.ownMonitor = ownMonitor;
+        queue = new ArrayBlockingQueue<>(queueCapacity, true);
+        for (CardTerminal terminal : terminals) {
+            Worker worker = new Worker(terminal);
+            workers.put(terminal.getName(), worker);
+            worker.start();
+        }
+        monitor.addListener(listener); //tells workers about cards already connected
+    }
+
+    /**
+     * Queues the job, waits while the queue is full.
+     */
+    public <T> CompletableFuture<T> submit(Job<T> job) throws InterruptedException {
+        checkOpen();
+        JobEntry<T> entry = new JobEntry<>(job);
+        queue.put(entry);
+        return entry.future;
+    }
+
+    /**
+     * Queues the job, waits at most given time while the queue is full.
+     * @throws RejectedExecutionException when the queue stays full
+     */
+    public <T> CompletableFuture<T> trySubmit(Job<T> job, long timeout, TimeUnit unit) throws InterruptedException {
+        checkOpen();
+        JobEntry<T> entry = new JobEntry<>(job);
+        if (!queue.offer(entry, timeout, unit)) {
+            throw new RejectedExecutionException("Reader pool queue is full.");
+        }
+        return entry.future;
+    }
+
+    /**
+     * Waits in the queue like any other job for a reader with card and reserves it until the lease is closed.
+     */
+    public Lease lease() throws InterruptedException, CardException {
+        checkOpen();
+        LeaseEntry entry = new LeaseEntry();
+        queue.put(entry);
+        Lease lease;
+        try {
+            lease = entry.leased.get();
+        } catch (ExecutionException e) {
+            throw new CardException(e.getCause());
+        } catch (InterruptedException e) {
+            if (!entry.leased.cancel(false)) {
+                entry.leased.getNow(null).close(); //reader was leased meanwhile, give it back
+            }
+            throw e;
+        }
+        try {
+            lease.cardInterface.beginExclusive(); //worker handed the card over without exclusive access
+        } catch (CardException e) {
+            lease.close();
+            throw e;
+        }
+        return lease;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new RejectedExecutionException("Reader pool is closed.");
+        }
+    }
+
+    public int getReaderCount() {
+        return workers.size();
+    }
+
+    /**
+     * @return jobs waiting for a free reader
+     */
+    public int getQueuedJobs() {
+        return queue.size();
+    }
+
+    /**
+     * Interrupts the workers, queued jobs fail with RejectedExecutionException. Cards are disconnected
+     * when the monitor was created by the pool.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        monitor.removeListener(listener);
+        if (ownMonitor) {
+            monitor.close();
+        }
+        for (Worker worker : workers.values()) {
+            worker.interrupt();
+        }
+        List<QueuedJob> pending = new ArrayList<>();
+        queue.drainTo(pending);
+        for (QueuedJob job : pending) {
+            job.fail(new RejectedExecutionException("Reader pool was closed."));
+        }
+    }
+
+    private static class JobEntry<T> extends QueuedJob {
+        private final Job<T> job;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        JobEntry(Job<T> job) {
+            this.job = job;
+        }
+
+        @Override
+        void run(DesktopCardInterface cardInterface, String readerName) throws Exception {
+            try {
+                cardInterface.beginExclusive();
+                try {
+                    future.complete(job.run(cardInterface));
+                } finally {
+                    cardInterface.endExclusive();
+                }
+            } catch (Throwable t) {
+                //errors too, nobody would complete the future otherwise
+                future.completeExceptionally(t);
+                throw t;
+            }
+        }
+
+        @Override
+        void fail(Throwable t) {
+            future.completeExceptionally(t);
+        }
+
+        @Override
+        boolean isDone() {
+            return future.isDone();
+        }
+    }
+
+    private static class LeaseEntry extends QueuedJob {
+        private final CompletableFuture<Lease> leased = new CompletableFuture<>();
+
+        @Override
+        void run(DesktopCardInterface cardInterface, String readerName) throws InterruptedException {
+            Lease lease = new Lease(cardInterface, readerName);
+            if (leased.complete(lease)) {
+                lease.closed.await();
+            }
+        }
+
+        @Override
+        void fail(Throwable t) {
+            leased.completeExceptionally(t);
+        }
+
+        @Override
+        boolean isDone() {
+            return leased.isDone();
+        }
+    }
+
+    private class Worker extends Thread {
+        private final CardTerminal terminal;
+        private DesktopCardInterface cardInterface;
+        private boolean waitingForJob;
+
+        Worker(CardTerminal terminal) {
+            super("obcanka-reader-" + terminal.getName());
+            this.terminal = terminal;
+            setDaemon(true);
+        }
+
+        synchronized void cardInserted(DesktopCardInterface cardInterface) {
+            this.cardInterface = cardInterface;
+            notifyAll();
+        }
+
+        synchronized void cardRemoved() {
+            cardInterface = null;
+            if (waitingForJob) {
+                interrupt(); //job must not be taken for reader without card
+            }
+        }
+
+        private synchronized void awaitCard() throws InterruptedException {
+            while (cardInterface == null) {
+                wait();
+            }
+            waitingForJob = true;
+        }
+
+        /**
+         * @return card of the reader or null when it was removed while the job was taken
+         */
+        private synchronized DesktopCardInterface jobTaken() {
+            waitingForJob = false;
+            if (!closed) {
+                Thread.interrupted(); //removal might have interrupted the thread right after the job was taken
+            }
+            return cardInterface;
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                QueuedJob job;
+                try {
+                    awaitCard();
+                    job = queue.take();
+                } catch (InterruptedException e) {
+                    jobTaken();
+                    continue; //card was removed or the pool closed
+                }
+                DesktopCardInterface currentCard = jobTaken();
+                if (job.isDone()) { //cancelled by the caller
+                    continue;
+                }
+                if (currentCard == null) {
+                    job.fail(new CardException("Card was removed from " + terminal.getName() + "."));
+                    continue;
+                }
+                try {
+                    job.run(currentCard, terminal.getName());
+                } catch (InterruptedException e) {
+                    if (closed) {
+                        break;
+                    }
+                } catch (Throwable t) {
+                    //job failure is reported through its future, card removal by the monitor,
+                    //errors thrown by the job must not stop the worker of the reader
+                    job.fail(t);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.desktop.lib;
+
+import cz.paralelnipolis.obcanka.core.communication.CardException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.smartcardio.CardTerminal;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CardPresenceMonitorTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private FakeCardTerminals terminals;
+    private CardPresenceMonitor monitor;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        terminals = new FakeCardTerminals("reader");
+        monitor = new CardPresenceMonitor(terminals);
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        monitor.close();
+    }
+
+    @Test
+    public void cardFromWaitForCardTransmitsOnCallerThread() throws Exception {
+        DesktopCardInterface cardInterface = monitor.waitForCard(TIMEOUT_MILLIS);
+
+        assertNotNull(cardInterface);
+        assertEquals(0x9000, transmit(cardInterface));
+    }
+
+    @Test
+    public void cardFromListenerTransmitsOnOtherThread() throws Exception {
+        final AtomicReference<DesktopCardInterface> inserted = new AtomicReference<>();
+        final CountDownLatch notified = new CountDownLatch(1);
+        monitor.addListener(new CardPresenceMonitor.Listener() {
+            @Override
+            public void cardInserted(CardTerminal terminal, DesktopCardInterface cardInterface) {
+                inserted.set(cardInterface);
+                notified.countDown();
+            }
+
+            @Override
+            public void cardRemoved(CardTerminal terminal) {
+            }
+        });
+        assertTrue(notified.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        Future<Integer> sw = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return transmit(inserted.get());
+            }
+        });
+        assertEquals(0x9000, (int) sw.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void exclusiveAccessKeepsOtherThreadsAway() throws Exception {
+        final DesktopCardInterface cardInterface = monitor.waitForCard(TIMEOUT_MILLIS);
+        cardInterface.beginExclusive();
+        try {
+            assertEquals(0x9000, transmit(cardInterface));
+            Future<Integer> sw = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return transmit(cardInterface);
+                }
+            });
+            try {
+                sw.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                fail("Other thread must not transmit during exclusive access.");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof CardException);
+            }
+        } finally {
+            cardInterface.endExclusive();
+        }
+    }
+
+    private static int transmit(DesktopCardInterface cardInterface) throws CardException {
+        return cardInterface.transmit(cardInterface.createCommand(new byte[]{0x00, (byte) 0xA4, 0x00, 0x00})).getSW();
+    }
+}
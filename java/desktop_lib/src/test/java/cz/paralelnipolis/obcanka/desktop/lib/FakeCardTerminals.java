@@ -0,0 +1,231 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.desktop.lib;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Readers with cards answering 9000 to everything. Like JDK, a card refuses commands from other threads than
+ * the one which began exclusive access.
+ */
+class FakeCardTerminals extends CardTerminals {
+    private final List<FakeTerminal> terminals = new ArrayList<>();
+
+    FakeCardTerminals(String... names) {
+        for (String name : names) {
+            terminals.add(new FakeTerminal(name));
+        }
+    }
+
+    FakeTerminal get(int index) {
+        return terminals.get(index);
+    }
+
+    List<CardTerminal> getTerminals() {
+        return new ArrayList<CardTerminal>(terminals);
+    }
+
+    /**
+     * Takes the card out of the reader, the change is reported by {@link #waitForChange(long)}.
+     */
+    synchronized void removeCard(int index) {
+        FakeTerminal terminal = terminals.get(index);
+        terminal.cardPresent = false;
+        terminal.removalPending = true;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized List<CardTerminal> list(State state) {
+        List<CardTerminal> result = new ArrayList<>();
+        for (FakeTerminal terminal : terminals) {
+            if (state == State.ALL || state == State.CARD_PRESENT && terminal.cardPresent) {
+                result.add(terminal);
+            } else if (state == State.CARD_REMOVAL && terminal.removalPending) {
+                terminal.removalPending = false;
+                result.add(terminal);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized boolean waitForChange(long timeout) throws CardException {
+        try {
+            if (!hasPendingChange()) {
+                wait(timeout);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CardException(e);
+        }
+        return hasPendingChange();
+    }
+
+    private boolean hasPendingChange() {
+        for (FakeTerminal terminal : terminals) {
+            if (terminal.removalPending) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static class FakeTerminal extends CardTerminal {
+        private final String name;
+        private volatile boolean cardPresent = true;
+        private boolean removalPending;
+        private final List<FakeCard> cards = new ArrayList<>();
+
+        FakeTerminal(String name) {
+            this.name = name;
+        }
+
+        synchronized List<FakeCard> getCards() {
+            return new ArrayList<>(cards);
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public synchronized Card connect(String protocol) {
+            FakeCard card = new FakeCard();
+            cards.add(card);
+            return card;
+        }
+
+        @Override
+        public boolean isCardPresent() {
+            return cardPresent;
+        }
+
+        @Override
+        public boolean waitForCardPresent(long timeout) {
+            return cardPresent;
+        }
+
+        @Override
+        public boolean waitForCardAbsent(long timeout) {
+            return !cardPresent;
+        }
+    }
+
+    static class FakeCard extends Card {
+        private Thread exclusiveThread;
+        private boolean disconnected;
+
+        synchronized boolean isDisconnected() {
+            return disconnected;
+        }
+
+        @Override
+        public ATR getATR() {
+            return new ATR(new byte[]{0x3B, 0x00});
+        }
+
+        @Override
+        public String getProtocol() {
+            return "T=0";
+        }
+
+        @Override
+        public CardChannel getBasicChannel() {
+            return new CardChannel() {
+                @Override
+                public Card getCard() {
+                    return FakeCard.this;
+                }
+
+                @Override
+                public int getChannelNumber() {
+                    return 0;
+                }
+
+                @Override
+                public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+                    checkExclusive();
+                    return new ResponseAPDU(new byte[]{(byte) 0x90, 0x00});
+                }
+
+                @Override
+                public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+                    checkExclusive();
+                    response.put((byte) 0x90).put((byte) 0x00);
+                    return 2;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        @Override
+        public CardChannel openLogicalChannel() throws CardException {
+            throw new CardException("Logical channels are not supported.");
+        }
+
+        @Override
+        public synchronized void beginExclusive() throws CardException {
+            if (exclusiveThread != null) {
+                throw new CardException("Exclusive access has already been assigned to " + exclusiveThread.getName());
+            }
+            exclusiveThread = Thread.currentThread();
+        }
+
+        @Override
+        public synchronized void endExclusive() {
+            if (exclusiveThread != Thread.currentThread()) {
+                throw new IllegalStateException("Exclusive access not assigned to current thread");
+            }
+            exclusiveThread = null;
+        }
+
+        @Override
+        public byte[] transmitControlCommand(int controlCode, byte[] command) {
+            return null;
+        }
+
+        @Override
+        public synchronized void disconnect(boolean reset) throws CardException {
+            checkExclusive();
+            disconnected = true;
+            exclusiveThread = null;
+        }
+
+        private synchronized void checkExclusive() throws CardException {
+            if (disconnected) {
+                throw new IllegalStateException("Card has been disconnected");
+            }
+            if (exclusiveThread != null && exclusiveThread != Thread.currentThread()) {
+                throw new CardException("Exclusive access established by another Thread");
+            }
+        }
+    }
+}
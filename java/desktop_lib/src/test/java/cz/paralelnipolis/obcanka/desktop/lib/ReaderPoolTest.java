@@ -0,0 +1,135 @@
+/*
+ * Copyright 2019 Paralelni Polis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.paralelnipolis.obcanka.desktop.lib;
+
+import cz.paralelnipolis.obcanka.core.communication.ICardInterface;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReaderPoolTest {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private FakeCardTerminals terminals;
+    private CardPresenceMonitor monitor;
+    private ReaderPool pool;
+
+    @Before
+    public void setUp() {
+        terminals = new FakeCardTerminals("reader");
+        monitor = new CardPresenceMonitor(terminals);
+        pool = new ReaderPool(monitor, terminals.getTerminals(), 4);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+        monitor.close();
+    }
+
+    @Test
+    public void jobTransmitsOnWorkerThread() throws Exception {
+        int sw = pool.submit(new ReaderPool.Job<Integer>() {
+            @Override
+            public Integer run(ICardInterface cardInterface) throws Exception {
+                return transmit(cardInterface);
+            }
+        }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertEquals(0x9000, sw);
+    }
+
+    @Test
+    public void leaseTransmitsOnBorrowingThread() throws Exception {
+        ReaderPool.Lease lease = pool.lease();
+        try {
+            assertEquals("reader", lease.getReaderName());
+            assertEquals(0x9000, transmit(lease.getCardInterface()));
+        } finally {
+            lease.close();
+        }
+
+        //worker gets exclusive access again after the lease
+        assertEquals(0x9000, (int) pool.submit(new ReaderPool.Job<Integer>() {
+            @Override
+            public Integer run(ICardInterface cardInterface) throws Exception {
+                return transmit(cardInterface);
+            }
+        }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void errorInJobDoesNotStopWorker() throws Exception {
+        try {
+            pool.submit(new ReaderPool.Job<Integer>() {
+                @Override
+                public Integer run(ICardInterface cardInterface) {
+                    throw new AssertionError("Job failed.");
+                }
+            }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            fail("Error of the job should fail its future.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AssertionError);
+        }
+
+        assertEquals(0x9000, (int) pool.submit(new ReaderPool.Job<Integer>() {
+            @Override
+            public Integer run(ICardInterface cardInterface) throws Exception {
+                return transmit(cardInterface);
+            }
+        }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cardRemovedDuringJobIsDisconnectedWhenJobEnds() throws Exception {
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch removed = new CountDownLatch(1);
+        pool.submit(new ReaderPool.Job<Integer>() {
+            @Override
+            public Integer run(ICardInterface cardInterface) throws Exception {
+                running.countDown();
+                removed.await();
+                return transmit(cardInterface);
+            }
+        });
+        assertTrue(running.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        FakeCardTerminals.FakeCard card = terminals.get(0).getCards().get(0);
+
+        terminals.removeCard(0);
+        Thread.sleep(200); //monitor reports the removal while the worker holds exclusive access
+        assertFalse(card.isDisconnected());
+        removed.countDown();
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (!card.isDisconnected() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(card.isDisconnected());
+    }
+
+    private static int transmit(ICardInterface cardInterface) throws Exception {
+        return cardInterface.transmit(cardInterface.createCommand(new byte[]{0x00, (byte) 0xA4, 0x00, 0x00})).getSW();
+    }
+}